@@ -0,0 +1,428 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs several accept loops for one port. With SO_REUSEPORT each loop owns its own
+// listening socket and the kernel balances connections between them; otherwise all
+// loops share one channel, each waiting on it through its own selector.
+//
+// Each loop is also an event loop: it reads the request head without blocking and lets
+// the RequestHandler answer straight from the loop (e.g. a cache hit). Only requests the
+// handler declines are switched to blocking mode and handed off.
+//
+// stopAccepting() starts a drain: each loop takes what is already in the accept backlog,
+// closes its listening socket and exits once the connections it still owns are done.
+public class AcceptorGroup {
+    private static final long MAX_ACCEPT_BACKOFF_MILLIS = 1000;
+
+    private final String name;
+    private final int port;
+    private final ListenerConfig config;
+    private final RequestHandler requestHandler;
+    private final TimeoutConfig timeouts;
+    private final ProxyServerUI ui;
+    private final AtomicInteger acceptFailures = new AtomicInteger(); // Consecutive, across all loops
+    private final BufferPool bufferPool = BufferPool.shared();
+    private final TimerWheel timerWheel = TimerWheel.shared();
+    private final List<ServerSocketChannel> channels = new ArrayList<>();
+    private final List<Selector> selectors = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean isRunning = true;
+    private volatile boolean accepting = true;
+
+    public interface RequestHandler {
+        // Runs on the event loop once the head [0, headEnd) has arrived; must not block.
+        // Returns the complete response to write from the loop, or null to hand the request off.
+        ByteBuffer tryFastPath(SocketChannel channel, ByteBuffer request, int headEnd, RequestTrace trace);
+
+        // Runs on the event loop with the channel back in blocking mode. The handler now owns
+        // the channel, the pooled request buffer, the deadline and the trace, and should dispatch quickly.
+        void handOff(SocketChannel channel, ByteBuffer request, int headEnd, RequestDeadline deadline, RequestTrace trace);
+
+        // Runs on the event loop once a fast-path response has been fully written
+        default void fastPathWritten(RequestTrace trace) {}
+    }
+
+    // Per-connection state while the request head is read or a fast-path response is written
+    private static class Connection {
+        final ByteBuffer request;
+        final RequestDeadline deadline;
+        final RequestTrace trace;
+        int scanned;
+        int headEnd = -1;
+        ByteBuffer response;
+
+        Connection(ByteBuffer request, RequestDeadline deadline, RequestTrace trace) {
+            this.request = request;
+            this.deadline = deadline;
+            this.trace = trace;
+        }
+    }
+
+    public AcceptorGroup(String name, int port, ListenerConfig config, RequestHandler requestHandler,
+                         TimeoutConfig timeouts, ProxyServerUI ui) {
+        this.name = name;
+        this.ui = ui;
+        this.port = port;
+        this.config = config;
+        this.requestHandler = requestHandler;
+        this.timeouts = timeouts;
+    }
+
+    // Binds every listening socket up front so bind errors surface before any loop starts.
+    // Does nothing if already open, so a caller can bind early and run() later.
+    public synchronized void open() throws IOException {
+        if (!isRunning || !accepting) {
+            throw new IOException("Listener " + name + " has been stopped");
+        }
+        if (!channels.isEmpty()) return;
+        try {
+            boolean reusePort = config.reusePort && supportsReusePort();
+            int channelCount = reusePort ? config.acceptorCount : 1;
+            for (int i = 0; i < channelCount; i++) {
+                channels.add(openChannel(reusePort));
+            }
+            for (int i = 0; i < config.acceptorCount; i++) {
+                ServerSocketChannel channel = channels.get(reusePort ? i : 0);
+                Selector selector = Selector.open();
+                channel.register(selector, SelectionKey.OP_ACCEPT);
+                selectors.add(selector);
+            }
+        } catch (IOException e) {
+            close();
+            for (Selector selector : selectors) {
+                selector.close();
+            }
+            throw e;
+        }
+    }
+
+    // Blocks until close() is called or a drain has finished
+    public void run() {
+        List<Thread> started = new ArrayList<>();
+        synchronized (this) {
+            for (int i = 0; i < selectors.size(); i++) {
+                Selector selector = selectors.get(i);
+                Thread thread = new Thread(() -> acceptLoop(selector), name + "-acceptor-" + i);
+                thread.start();
+                started.add(thread);
+            }
+            threads.addAll(started);
+        }
+        for (Thread thread : started) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Closes the listening sockets but lets every loop finish the connections it already has
+    public synchronized void stopAccepting() {
+        accepting = false;
+        for (Selector selector : selectors) {
+            selector.wakeup();
+        }
+    }
+
+    // Waits for the loops to exit after stopAccepting(); false if some are still busy
+    public boolean awaitStopped(long timeoutMillis) throws InterruptedException {
+        List<Thread> running;
+        synchronized (this) {
+            running = new ArrayList<>(threads);
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Thread thread : running) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining > 0) {
+                thread.join(remaining);
+            }
+            if (thread.isAlive()) return false;
+        }
+        return true;
+    }
+
+    public synchronized void close() {
+        isRunning = false;
+        for (ServerSocketChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+        for (Selector selector : selectors) {
+            selector.wakeup(); // The loop closes its own selector once it has cleaned up
+        }
+    }
+
+    private void acceptLoop(Selector selector) {
+        List<SelectionKey> handOffs = new ArrayList<>();
+        // Connections whose header-read deadline passed; queued by the timer thread so that
+        // only this loop ever touches its keys and buffers
+        Queue<SelectionKey> expired = new ConcurrentLinkedQueue<>();
+        try {
+            while (isRunning) {
+                // Keys left over from the last selectNow() are still waiting to be processed
+                if (selector.selectedKeys().isEmpty()) {
+                    selector.select();
+                }
+                if (!accepting) {
+                    stopAccepting(selector, expired);
+                }
+                SelectionKey timedOut;
+                while ((timedOut = expired.poll()) != null) {
+                    if (timedOut.attachment() != null) {
+                        release(timedOut);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        release(key);
+                    } else if (key.isAcceptable()) {
+                        accept(selector, key, expired);
+                    } else {
+                        serve(key, handOffs);
+                    }
+                }
+
+                if (!handOffs.isEmpty()) {
+                    selector.selectNow(); // Deregisters the cancelled keys so the channels can block again
+                    for (SelectionKey key : handOffs) {
+                        handOff(key);
+                    }
+                    handOffs.clear();
+                }
+                if (!accepting && !hasConnections(selector)) {
+                    break; // Drained
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // Selector failed or was closed; fall through to cleanup
+        } finally {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() != null) {
+                        release(key);
+                    }
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException ignored) {}
+        }
+    }
+
+    // Takes whatever is still queued in the backlog - closing a listener resets those
+    // connections - then closes this loop's listening socket
+    private void stopAccepting(Selector selector, Queue<SelectionKey> expired) {
+        for (SelectionKey key : selector.keys()) {
+            if (!key.isValid() || !(key.channel() instanceof ServerSocketChannel)) continue;
+            ServerSocketChannel server = (ServerSocketChannel) key.channel();
+            while (accept(selector, key, expired)) {}
+            key.cancel();
+            try {
+                server.close(); // A channel shared with other loops is closed once; later closes do nothing
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private static boolean hasConnections(Selector selector) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid()) return true;
+        }
+        return false;
+    }
+
+    // Returns false once there is nothing left to accept
+    private boolean accept(Selector selector, SelectionKey acceptKey, Queue<SelectionKey> expired) {
+        SocketChannel client;
+        try {
+            // Another acceptor sharing the channel may have taken the connection already
+            client = ((ServerSocketChannel) acceptKey.channel()).accept();
+        } catch (IOException e) {
+            if (isRunning && acceptKey.channel().isOpen()) {
+                backOff(selector, acceptKey, e);
+            }
+            return false;
+        }
+        if (client == null) return false;
+        acceptFailures.set(0);
+        RequestTrace trace = new RequestTrace();
+
+        try {
+            configure(client);
+            client.configureBlocking(false);
+            RequestDeadline deadline = new RequestDeadline(timerWheel, timeouts);
+            SelectionKey key = client.register(selector, SelectionKey.OP_READ,
+                new Connection(bufferPool.acquire(ChannelIO.HEAD_BUFFER_SIZE), deadline, trace));
+            deadline.watch(() -> {
+                expired.add(key);
+                selector.wakeup();
+            });
+            deadline.enterPhase("header read", timeouts.headerReadTimeoutMillis);
+        } catch (IOException e) {
+            try {
+                client.close();
+            } catch (IOException ignored) {}
+        }
+        return true;
+    }
+
+    private void serve(SelectionKey key, List<SelectionKey> handOffs) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isWritable()) {
+                channel.write(connection.response);
+                if (!connection.response.hasRemaining()) {
+                    fastPathWritten(key, connection);
+                }
+                return;
+            }
+
+            ByteBuffer request = connection.request;
+            if (channel.read(request) < 0) {
+                release(key);
+                return;
+            }
+            connection.deadline.touch();
+            connection.headEnd = ChannelIO.findHeadEnd(request, connection.scanned);
+            if (connection.headEnd < 0) {
+                connection.scanned = Math.max(0, request.position() - 3);
+                if (!request.hasRemaining()) {
+                    release(key); // Request header too large
+                }
+                return;
+            }
+
+            connection.trace.mark(RequestTrace.HEAD_READ);
+            ByteBuffer response = requestHandler.tryFastPath(channel, request, connection.headEnd, connection.trace);
+            if (response == null) {
+                key.cancel();
+                handOffs.add(key);
+                return;
+            }
+            channel.write(response);
+            if (response.hasRemaining()) {
+                // Socket buffer is full; finish the write when the loop sees it writable
+                connection.response = response;
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                fastPathWritten(key, connection);
+            }
+        } catch (IOException | RuntimeException e) {
+            release(key);
+        }
+    }
+
+    // Errors such as running out of file descriptors repeat on every attempt, and the channel
+    // stays acceptable, so the loop stops accepting for a while instead of spinning on them
+    private void backOff(Selector selector, SelectionKey acceptKey, IOException e) {
+        int failures = acceptFailures.incrementAndGet();
+        if (Integer.bitCount(failures) == 1) { // 1st, 2nd, 4th, 8th... failure in a row
+            ui.addLog(name.toUpperCase() + " ERROR", "Socket error", "SYSTEM",
+                "ERROR: " + e.getMessage() + " (" + failures + " failed accepts in a row)");
+        }
+        long delay = Math.min(MAX_ACCEPT_BACKOFF_MILLIS, 10L << Math.min(failures - 1, 10));
+        try {
+            acceptKey.interestOps(0);
+        } catch (CancelledKeyException ignored) {
+            return;
+        }
+        timerWheel.schedule(() -> {
+            try {
+                acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+                selector.wakeup();
+            } catch (CancelledKeyException ignored) {} // Stopped in the meantime
+        }, delay);
+    }
+
+    private void handOff(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        try {
+            channel.configureBlocking(true);
+            connection.deadline.watch(channel); // From here a passed deadline closes the channel directly
+            if (connection.deadline.isExpired()) {
+                // Expired just before the switch: the expiry went to the loop's queue, which has
+                // already been drained, and an expired deadline never fires again
+                release(key);
+                return;
+            }
+            key.attach(null); // The handler owns the connection now
+            connection.trace.mark(RequestTrace.QUEUED);
+            requestHandler.handOff(channel, connection.request, connection.headEnd, connection.deadline, connection.trace);
+        } catch (IOException | RuntimeException e) {
+            key.attach(connection);
+            release(key);
+        }
+    }
+
+    private void fastPathWritten(SelectionKey key, Connection connection) {
+        release(key);
+        connection.trace.mark(RequestTrace.WRITTEN);
+        connection.trace.finish();
+        requestHandler.fastPathWritten(connection.trace);
+    }
+
+    // Closes a connection the loop still owns and returns its resources
+    private void release(SelectionKey key) {
+        key.cancel();
+        Connection connection = (Connection) key.attachment();
+        key.attach(null);
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {}
+        if (connection != null) {
+            connection.deadline.cancel();
+            bufferPool.release(connection.request);
+        }
+    }
+
+    private ServerSocketChannel openChannel(boolean reusePort) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (reusePort) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            if (config.receiveBufferSize > 0) {
+                // Must be set on the listener so accepted sockets can negotiate larger windows
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, config.receiveBufferSize);
+            }
+            channel.bind(new InetSocketAddress(port), config.backlog);
+            channel.configureBlocking(false);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void configure(SocketChannel client) throws IOException {
+        // Handlers use blocking I/O on the accepted socket
+        client.configureBlocking(true);
+        client.setOption(StandardSocketOptions.TCP_NODELAY, config.tcpNoDelay);
+        if (config.sendBufferSize > 0) {
+            client.setOption(StandardSocketOptions.SO_SNDBUF, config.sendBufferSize);
+        }
+    }
+
+    private static boolean supportsReusePort() {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
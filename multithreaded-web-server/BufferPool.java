@@ -0,0 +1,171 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Size-classed pool of direct ByteBuffers used for all socket reads and writes.
+// Each thread keeps a few buffers per class; the rest live in a shared arena. Large classes
+// keep fewer spares so idle direct memory stays bounded (about 16 MB of arena per class).
+// Requests beyond the largest class get plain heap buffers, which are cheap to allocate.
+// Run with -DbufferPool.debug=true to record who holds every outstanding buffer.
+public class BufferPool {
+    // Up to 2 MB so that whole responses of Server's largest objects (1 MB) are pooled
+    private static final int[] SIZE_CLASSES = {512, 2048, 8192, 32768, 131072, 524288, 2097152};
+    private static final int THREAD_CACHE_SIZE = 8;
+    private static final int THREAD_CACHE_BYTES = 256 * 1024;
+    private static final int ARENA_SIZE_PER_CLASS = 256;
+    private static final int ARENA_BYTES_PER_CLASS = 16 * 1024 * 1024;
+
+    private static final BufferPool SHARED = new BufferPool(Boolean.getBoolean("bufferPool.debug"));
+
+    private final boolean debug;
+    private final Queue<ByteBuffer>[] arena;
+    private final AtomicInteger[] arenaCounts;
+    private final int[] threadCacheLimits;
+    private final int[] arenaLimits;
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCaches;
+    private final Map<ByteBuffer, Throwable> outstanding = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    private final LongAdder threadCacheHits = new LongAdder();
+    private final LongAdder arenaHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder oversized = new LongAdder();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(boolean debug) {
+        this.debug = debug;
+        this.arena = new Queue[SIZE_CLASSES.length];
+        this.arenaCounts = new AtomicInteger[SIZE_CLASSES.length];
+        this.threadCacheLimits = new int[SIZE_CLASSES.length];
+        this.arenaLimits = new int[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            arena[i] = new ConcurrentLinkedQueue<>();
+            arenaCounts[i] = new AtomicInteger();
+            threadCacheLimits[i] = Math.max(1, Math.min(THREAD_CACHE_SIZE, THREAD_CACHE_BYTES / SIZE_CLASSES[i]));
+            arenaLimits[i] = Math.max(4, Math.min(ARENA_SIZE_PER_CLASS, ARENA_BYTES_PER_CLASS / SIZE_CLASSES[i]));
+        }
+        this.threadCaches = ThreadLocal.withInitial(() -> {
+            ArrayDeque<ByteBuffer>[] caches = new ArrayDeque[SIZE_CLASSES.length];
+            for (int i = 0; i < caches.length; i++) {
+                caches[i] = new ArrayDeque<>(THREAD_CACHE_SIZE);
+            }
+            return caches;
+        });
+    }
+
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    // Returns a cleared buffer of at least minCapacity bytes; pass it back to release() when done
+    public ByteBuffer acquire(int minCapacity) {
+        int sizeClass = sizeClassOf(minCapacity);
+        ByteBuffer buffer;
+        if (sizeClass < 0) {
+            // Too big to pool; a heap buffer is far cheaper to allocate than a direct one.
+            // Still tracked in debug mode so leaks show up
+            oversized.increment();
+            buffer = ByteBuffer.allocate(minCapacity);
+        } else {
+            buffer = threadCaches.get()[sizeClass].pollFirst();
+            if (buffer != null) {
+                threadCacheHits.increment();
+            } else if ((buffer = arena[sizeClass].poll()) != null) {
+                arenaCounts[sizeClass].decrementAndGet();
+                arenaHits.increment();
+            } else {
+                misses.increment();
+                buffer = ByteBuffer.allocateDirect(SIZE_CLASSES[sizeClass]);
+            }
+        }
+
+        buffer.clear();
+        if (debug) {
+            outstanding.put(buffer, new Throwable("Buffer acquired by " + Thread.currentThread().getName()));
+        }
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) return;
+        if (debug && outstanding.remove(buffer) == null) {
+            throw new IllegalStateException("Buffer released twice or not from this pool");
+        }
+
+        int sizeClass = exactSizeClassOf(buffer.capacity());
+        if (sizeClass < 0 || !buffer.isDirect()) {
+            return; // Oversized buffers are left to the GC
+        }
+        ArrayDeque<ByteBuffer> cache = threadCaches.get()[sizeClass];
+        if (cache.size() < threadCacheLimits[sizeClass]) {
+            cache.addFirst(buffer);
+        } else if (arenaCounts[sizeClass].incrementAndGet() <= arenaLimits[sizeClass]) {
+            arena[sizeClass].offer(buffer);
+        } else {
+            arenaCounts[sizeClass].decrementAndGet();
+        }
+    }
+
+    // Copies the buffer into one of at least minCapacity bytes and releases the old one
+    public ByteBuffer grow(ByteBuffer buffer, int minCapacity) {
+        ByteBuffer bigger = acquire(Math.max(minCapacity, buffer.capacity() * 2));
+        buffer.flip();
+        bigger.put(buffer);
+        release(buffer);
+        return bigger;
+    }
+
+    public boolean isDebug() {
+        return debug;
+    }
+
+    public int outstandingCount() {
+        return outstanding.size();
+    }
+
+    // Allocation site of one buffer that was acquired but never released (debug mode only)
+    public Throwable sampleLeak() {
+        synchronized (outstanding) {
+            return outstanding.isEmpty() ? null : outstanding.values().iterator().next();
+        }
+    }
+
+    // Logs hit/miss stats, plus any buffers still held when running in debug mode
+    public void logStats(ProxyServerUI ui, String type) {
+        ui.addLog(type, "Buffer pool " + stats(), "SYSTEM", "INFO");
+        if (debug && outstandingCount() > 0) {
+            Throwable leak = sampleLeak();
+            ui.addLog(type + " WARNING", "Buffer pool: " + outstandingCount() + " buffers not released", "SYSTEM",
+                "WARNING: " + (leak != null ? leak.getMessage() + " at " + leak.getStackTrace()[1] : "unknown"));
+        }
+    }
+
+    public String stats() {
+        long threadHits = threadCacheHits.sum();
+        long sharedHits = arenaHits.sum();
+        long allocated = misses.sum();
+        long total = threadHits + sharedHits + allocated;
+        double hitRate = total > 0 ? (threadHits + sharedHits) * 100.0 / total : 0;
+        return String.format("hits=%d (thread %d, arena %d) misses=%d oversized=%d hit rate=%.1f%%",
+            threadHits + sharedHits, threadHits, sharedHits, allocated, oversized.sum(), hitRate);
+    }
+
+    private static int sizeClassOf(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity <= SIZE_CLASSES[i]) return i;
+        }
+        return -1;
+    }
+
+    private static int exactSizeClassOf(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity == SIZE_CLASSES[i]) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+// Byte-level HTTP helpers over blocking SocketChannels and pooled buffers.
+// Text is treated as ISO-8859-1 so every char maps to exactly one byte.
+public final class ChannelIO {
+    public static final int HEAD_BUFFER_SIZE = 8192;
+
+    private ChannelIO() {}
+
+    // Reads until the blank line ending the header block. Returns the offset just past it,
+    // or -1 if the peer closed first. Bytes after the head (e.g. a POST body) stay in the buffer.
+    // The deadline, if any, is told about every read so its idle limit only counts silence.
+    public static int readHead(SocketChannel channel, ByteBuffer buffer, RequestDeadline deadline) throws IOException {
+        int scanned = 0;
+        while (true) {
+            int headEnd = findHeadEnd(buffer, scanned);
+            if (headEnd >= 0) {
+                return headEnd;
+            }
+            scanned = Math.max(0, buffer.position() - 3);
+            if (!buffer.hasRemaining()) {
+                throw new IOException("Request header too large");
+            }
+            if (channel.read(buffer) < 0) {
+                return -1;
+            }
+            if (deadline != null) {
+                deadline.touch();
+            }
+        }
+    }
+
+    // Looks for "\n\n" or "\r\n\r\n" in [from, position) of a buffer being filled
+    public static int findHeadEnd(ByteBuffer buffer, int from) {
+        int end = buffer.position();
+        for (int i = from; i < end; i++) {
+            if (buffer.get(i) != '\n') continue;
+            if (i + 1 < end && buffer.get(i + 1) == '\n') {
+                return i + 2;
+            }
+            if (i + 2 < end && buffer.get(i + 1) == '\r' && buffer.get(i + 2) == '\n') {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    // Offset of the end of the first line (excluding "\r\n"), or -1 if there is none
+    public static int lineEnd(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == '\n') {
+                return i > from && buffer.get(i - 1) == '\r' ? i - 1 : i;
+            }
+        }
+        return -1;
+    }
+
+    // Offset just past the "\n" ending the line that starts at from, or to if there is none
+    public static int nextLine(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == '\n') return i + 1;
+        }
+        return to;
+    }
+
+    // Value of the first header with this name (case-insensitive) in the head [0, headEnd), or null
+    public static String headerValue(ByteBuffer buffer, int headEnd, String name) {
+        int lineStart = nextLine(buffer, 0, headEnd); // Skip the request or status line
+        while (lineStart < headEnd) {
+            int end = lineEnd(buffer, lineStart, headEnd);
+            if (end < 0) end = headEnd;
+            if (end - lineStart > name.length() && buffer.get(lineStart + name.length()) == ':'
+                    && decode(buffer, lineStart, lineStart + name.length()).equalsIgnoreCase(name)) {
+                return decode(buffer, lineStart + name.length() + 1, end).trim();
+            }
+            lineStart = nextLine(buffer, lineStart, headEnd);
+        }
+        return null;
+    }
+
+    public static String decode(ByteBuffer buffer, int from, int to) {
+        char[] chars = new char[to - from];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (buffer.get(from + i) & 0xff);
+        }
+        return new String(chars);
+    }
+
+    // Reads until the peer closes, growing the buffer through the pool as needed. Takes ownership
+    // of buffer: the caller must drop its reference, since a grow may already have released it.
+    // If the read fails, the current buffer is released before the exception is rethrown.
+    public static ByteBuffer readToEnd(SocketChannel channel, ByteBuffer buffer, BufferPool pool,
+                                       RequestDeadline deadline) throws IOException {
+        try {
+            while (true) {
+                if (!buffer.hasRemaining()) {
+                    buffer = pool.grow(buffer, buffer.capacity() * 2);
+                }
+                if (channel.read(buffer) < 0) {
+                    return buffer;
+                }
+                if (deadline != null) {
+                    deadline.touch();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            pool.release(buffer);
+            throw e;
+        }
+    }
+
+    // Appends text to the buffer, flushing to the channel whenever it fills up
+    public static void writeAscii(SocketChannel channel, ByteBuffer buffer, CharSequence text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            if (!buffer.hasRemaining()) {
+                flush(channel, buffer);
+            }
+            buffer.put((byte) text.charAt(i));
+        }
+    }
+
+    public static void writeBytes(SocketChannel channel, ByteBuffer buffer, byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                flush(channel, buffer);
+            }
+            int chunk = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, chunk);
+            offset += chunk;
+        }
+    }
+
+    // Appends src's remaining bytes to the buffer, flushing to the channel whenever it fills up
+    public static void writeBuffer(SocketChannel channel, ByteBuffer buffer, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            if (!buffer.hasRemaining()) {
+                flush(channel, buffer);
+            }
+            int chunk = Math.min(buffer.remaining(), src.remaining());
+            ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + chunk);
+            buffer.put(slice);
+            src.position(src.position() + chunk);
+        }
+    }
+
+    public static void flush(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    public static byte[] toBytes(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        return bytes;
+    }
+}
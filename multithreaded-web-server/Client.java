@@ -1,5 +1,7 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.*;
 import java.util.Random;
 
@@ -8,113 +10,176 @@ public class Client {
     private final int serverPort;
     private final ProxyServerUI ui;
     private final Random random = new Random();
+    private final BufferPool bufferPool = BufferPool.shared();
+    private final TimerWheel timerWheel = TimerWheel.shared();
+    private final TimeoutConfig timeouts;
 
     public Client(String serverHost, int serverPort, ProxyServerUI ui) {
+        this(serverHost, serverPort, ui, TimeoutConfig.defaults());
+    }
+
+    public Client(String serverHost, int serverPort, ProxyServerUI ui, TimeoutConfig timeouts) {
         this.serverHost = serverHost;
         this.serverPort = serverPort;
         this.ui = ui;
+        this.timeouts = timeouts;
     }
 
     // Modified runTest method to generate a specific number of requests within a duration, repeated for loops
     public void runTest(int totalRequestsToGenerate, int durationPerLoopSeconds, int numLoops, boolean isSkewed) {
+        runTest(totalRequestsToGenerate, durationPerLoopSeconds, numLoops, () -> generateRequest(random.nextInt(10000), isSkewed));
+    }
+
+    // Same pacing as above, with requests drawn from any workload (e.g. a SyntheticWorkload)
+    public void runTest(int totalRequestsToGenerate, int durationPerLoopSeconds, int numLoops, Workload workload) {
         ui.resetMetrics(); // Reset metrics at the beginning of the entire test
         
         // Define a thread pool for concurrently sending requests
         ExecutorService executor = Executors.newFixedThreadPool(50); // Increased thread pool for potentially higher concurrent requests
 
-        for (int loop = 0; loop < numLoops; loop++) {
-            ui.addLog("CLIENT", "Starting Loop " + (loop + 1) + " of " + numLoops, "SYSTEM", "INFO");
-            long loopStartTime = System.currentTimeMillis();
-            long loopEndTime = loopStartTime + (durationPerLoopSeconds * 1000L); // End time for the current loop
+        int sent = 0;
+        try {
+            loops:
+            for (int loop = 0; loop < numLoops; loop++) {
+                ui.addLog("CLIENT", "Starting Loop " + (loop + 1) + " of " + numLoops, "SYSTEM", "INFO");
+                long loopStartTime = System.currentTimeMillis();
+                long loopEndTime = loopStartTime + (durationPerLoopSeconds * 1000L); // End time for the current loop
             
-            // Calculate target delay per request to achieve the desired rate
-            // This is an average target; actual timing will vary due to network/server response
-            long targetDelayPerRequestMillis = (durationPerLoopSeconds * 1000L) / totalRequestsToGenerate;
+                // Calculate target delay per request to achieve the desired rate
+                // This is an average target; actual timing will vary due to network/server response
+                long targetDelayPerRequestMillis = (durationPerLoopSeconds * 1000L) / totalRequestsToGenerate;
             
-            for (int i = 0; i < totalRequestsToGenerate; i++) {
-                // Check if the loop time has expired before sending the next request
-                if (System.currentTimeMillis() >= loopEndTime) {
-                    ui.addLog("CLIENT", "Loop " + (loop + 1) + " time expired, stopping early.", "SYSTEM", "WARNING");
-                    break; 
-                }
-
-                final int clientId = random.nextInt(10000); // Use random client IDs
-                executor.execute(() -> {
-                    try (Socket socket = new Socket(serverHost, serverPort);
-                         PrintWriter toSocket = new PrintWriter(socket.getOutputStream(), true);
-                         BufferedReader fromSocket = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-
-                        String request = generateRequest(clientId, isSkewed);
-                        String path = extractPath(request);
-                        
-                        ui.addLog("CLIENT", path, "Client-" + clientId, "SENDING REQUEST");
-                        
-                        toSocket.println(request);
-
-                        // Read response
-                        StringBuilder response = new StringBuilder();
-                        String line;
-                        // Read until the end of the response or a reasonable timeout
-                        long responseReadStartTime = System.currentTimeMillis();
-                        while ((line = fromSocket.readLine()) != null) {
-                            response.append(line).append("\n");
-                            // Basic heuristic for end of headers. For robust parsing,
-                            // Content-Length or Transfer-Encoding headers would be used.
-                            if (line.isEmpty()) { 
-                                break; 
-                            }
-                            if (System.currentTimeMillis() - responseReadStartTime > 5000) { // 5 second timeout for reading response
-                                ui.addLog("CLIENT WARNING", "Response read timeout", "Client-" + clientId, "WARNING");
-                                break;
-                            }
-                        }
+                for (int i = 0; i < totalRequestsToGenerate; i++) {
+                    // Check if the loop time has expired before sending the next request
+                    if (System.currentTimeMillis() >= loopEndTime) {
+                        ui.addLog("CLIENT", "Loop " + (loop + 1) + " time expired, stopping early.", "SYSTEM", "WARNING");
+                        break; 
+                    }
 
-                        ui.addLog("CLIENT", path, "Client-" + clientId, "RECEIVED RESPONSE");
+                    Workload.Request request = workload.next();
+                    if (request == null) {
+                        ui.addLog("CLIENT", "Workload exhausted after " + sent + " requests", "SYSTEM", "INFO");
+                        break loops;
+                    }
+                    final int clientId = random.nextInt(10000); // Use random client IDs
+                    executor.execute(() -> sendRequest(request, clientId));
+                    sent++;
+                
+                    // Introduce a delay to pace the requests for the current loop
+                    long elapsedInLoop = System.currentTimeMillis() - loopStartTime;
+                    long expectedElapsedForCurrentRequest = (long) (i + 1) * targetDelayPerRequestMillis;
+                    long sleepTime = expectedElapsedForCurrentRequest - elapsedInLoop;
 
-                    } catch (ConnectException e) {
-                        ui.addLog("CLIENT ERROR", "Connection refused", "Client-" + clientId, "CONNECTION FAILED: " + e.getMessage());
-                    } catch (SocketException e) {
-                        if (e.getMessage().contains("Connection reset") || e.getMessage().contains("Broken pipe")) {
-                            ui.addLog("CLIENT WARNING", "Connection closed prematurely", "Client-" + clientId, "WARNING: " + e.getMessage());
-                        } else {
-                            ui.addLog("CLIENT ERROR", "Socket Error", "Client-" + clientId, "ERROR: " + e.getMessage());
+                    if (sleepTime > 0) {
+                        try {
+                            Thread.sleep(sleepTime);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            ui.addLog("CLIENT ERROR", "Client interrupted during sleep", "SYSTEM", "ERROR: " + e.getMessage());
+                            return; // Exit if interrupted
                         }
-                    } catch (IOException e) {
-                        ui.addLog("CLIENT ERROR", "IO Error", "Client-" + clientId, "ERROR: " + e.getMessage());
                     }
-                });
-                
-                // Introduce a delay to pace the requests for the current loop
-                long elapsedInLoop = System.currentTimeMillis() - loopStartTime;
-                long expectedElapsedForCurrentRequest = (long) (i + 1) * targetDelayPerRequestMillis;
-                long sleepTime = expectedElapsedForCurrentRequest - elapsedInLoop;
+                }
+
+                // Ensure the loop runs for at least `durationPerLoopSeconds` if not all requests were sent or if requests finished early
+                long remainingLoopTime = loopEndTime - System.currentTimeMillis();
+                if (remainingLoopTime > 0) {
+                    try {
+                        ui.addLog("CLIENT", "Waiting for loop " + (loop + 1) + " to complete its duration.", "SYSTEM", "INFO");
+                        Thread.sleep(remainingLoopTime);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        ui.addLog("CLIENT ERROR", "Client interrupted during loop wait", "SYSTEM", "ERROR: " + e.getMessage());
+                        return;
+                    }
+                }
+                ui.addLog("CLIENT", "Finished Loop " + (loop + 1) + " of " + numLoops, "SYSTEM", "INFO");
+            }
+        } finally {
+            awaitCompletion(executor); // Also on failure, so the pool threads do not outlive the run
+        }
+        ui.addLog("SYSTEM", "Client test run completed for all loops.", "SYSTEM", "INFO");
+    }
+
+    // Replays a workload at its recorded offsets (already time-scaled by the workload);
+    // requests without an offset are sent as soon as the previous one is queued
+    public void runReplay(Workload workload) {
+        ui.resetMetrics();
+        ExecutorService executor = Executors.newFixedThreadPool(50);
+        long replayStartTime = System.currentTimeMillis();
+        int sent = 0;
 
+        try {
+            Workload.Request request;
+            while ((request = workload.next()) != null) {
+                long sleepTime = request.offsetMillis - (System.currentTimeMillis() - replayStartTime);
                 if (sleepTime > 0) {
                     try {
                         Thread.sleep(sleepTime);
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
-                        ui.addLog("CLIENT ERROR", "Client interrupted during sleep", "SYSTEM", "ERROR: " + e.getMessage());
-                        return; // Exit if interrupted
+                        ui.addLog("CLIENT ERROR", "Replay interrupted", "SYSTEM", "ERROR: " + e.getMessage());
+                        break;
                     }
                 }
+                final Workload.Request next = request;
+                final int clientId = random.nextInt(10000);
+                executor.execute(() -> sendRequest(next, clientId));
+                sent++;
             }
+        } finally {
+            awaitCompletion(executor); // Also on failure, so the pool threads do not outlive the run
+        }
+        ui.addLog("SYSTEM", "Replay completed: " + sent + " requests in "
+            + (System.currentTimeMillis() - replayStartTime) + " ms", "SYSTEM", "INFO");
+    }
 
-            // Ensure the loop runs for at least `durationPerLoopSeconds` if not all requests were sent or if requests finished early
-            long remainingLoopTime = loopEndTime - System.currentTimeMillis();
-            if (remainingLoopTime > 0) {
-                try {
-                    ui.addLog("CLIENT", "Waiting for loop " + (loop + 1) + " to complete its duration.", "SYSTEM", "INFO");
-                    Thread.sleep(remainingLoopTime);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    ui.addLog("CLIENT ERROR", "Client interrupted during loop wait", "SYSTEM", "ERROR: " + e.getMessage());
-                    return;
-                }
+    private void sendRequest(Workload.Request request, int clientId) {
+        ByteBuffer buffer = bufferPool.acquire(ChannelIO.HEAD_BUFFER_SIZE);
+        RequestDeadline deadline = new RequestDeadline(timerWheel, timeouts);
+        try (SocketChannel channel = SocketChannel.open()) {
+            deadline.watch(channel);
+            channel.socket().connect(new InetSocketAddress(serverHost, serverPort), (int) timeouts.connectTimeoutMillis);
+
+            String path = request.path;
+            
+            ui.addLog("CLIENT", path, "Client-" + clientId, "SENDING REQUEST");
+            
+            ChannelIO.writeAscii(channel, buffer, request.toHttp(serverHost));
+            ChannelIO.writeAscii(channel, buffer, "\n");
+            ChannelIO.flush(channel, buffer);
+
+            // Read until the end of the response headers; the deadline closes the
+            // channel if the response stalls, which ends the read with an exception.
+            // For robust parsing, Content-Length or Transfer-Encoding headers would be used.
+            deadline.enterPhase("response read", timeouts.headerReadTimeoutMillis);
+            ChannelIO.readHead(channel, buffer, deadline);
+
+            ui.addLog("CLIENT", path, "Client-" + clientId, "RECEIVED RESPONSE");
+
+        } catch (SocketTimeoutException e) {
+            ui.addLog("CLIENT ERROR", "Connect timeout", "Client-" + clientId, "CONNECTION FAILED: " + e.getMessage());
+        } catch (ConnectException e) {
+            ui.addLog("CLIENT ERROR", "Connection refused", "Client-" + clientId, "CONNECTION FAILED: " + e.getMessage());
+        } catch (SocketException e) {
+            if (e.getMessage().contains("Connection reset") || e.getMessage().contains("Broken pipe")) {
+                ui.addLog("CLIENT WARNING", "Connection closed prematurely", "Client-" + clientId, "WARNING: " + e.getMessage());
+            } else {
+                ui.addLog("CLIENT ERROR", "Socket Error", "Client-" + clientId, "ERROR: " + e.getMessage());
+            }
+        } catch (IOException e) {
+            if (deadline.isExpired()) {
+                ui.addLog("CLIENT WARNING", "Response read timeout", "Client-" + clientId, "WARNING: " + deadline.getExpiredReason());
+            } else {
+                ui.addLog("CLIENT ERROR", "IO Error", "Client-" + clientId, "ERROR: " + e.getMessage());
             }
-            ui.addLog("CLIENT", "Finished Loop " + (loop + 1) + " of " + numLoops, "SYSTEM", "INFO");
+        } finally {
+            deadline.cancel();
+            bufferPool.release(buffer);
         }
-        
+    }
+
+    private void awaitCompletion(ExecutorService executor) {
         executor.shutdown();
         try {
             // Give a generous timeout for all pending tasks to complete
@@ -127,10 +192,9 @@ public class Client {
             Thread.currentThread().interrupt(); // Restore the interrupted status
             ui.addLog("CLIENT ERROR", "Executor termination interrupted", "SYSTEM", "ERROR: " + e.getMessage());
         }
-        ui.addLog("SYSTEM", "Client test run completed for all loops.", "SYSTEM", "INFO");
     }
 
-    private String generateRequest(int clientId, boolean isSkewed) {
+    private Workload.Request generateRequest(int clientId, boolean isSkewed) {
         int requestType;
         
         if (isSkewed) {
@@ -147,26 +211,15 @@ public class Client {
         
         switch (requestType) {
             case 0:
-                return "GET /index.html HTTP/1.1\nHost: " + serverHost + "\n\n";
+                return new Workload.Request("GET", "/index.html", null, -1);
             case 1:
-                return "GET /api/data?id=" + clientId + " HTTP/1.1\nHost: " + serverHost + "\n\n";
+                return new Workload.Request("GET", "/api/data?id=" + clientId, null, -1);
             case 2:
-                return "POST /api/data HTTP/1.1\nHost: " + serverHost + "\nContent-Length: 12\n\n{\"id\":" + clientId + "}";
+                return new Workload.Request("POST", "/api/data", "{\"id\":" + clientId + "}", -1);
             case 3:
-                return "GET /static/image" + (clientId % 5) + ".jpg HTTP/1.1\nHost: " + serverHost + "\n\n";
+                return new Workload.Request("GET", "/static/image" + (clientId % 5) + ".jpg", null, -1);
             default:
-                return "GET / HTTP/1.1\nHost: " + serverHost + "\n\n";
-        }
-    }
-    
-    private String extractPath(String request) {
-        String[] lines = request.split("\n");
-        if (lines.length > 0) {
-            String[] parts = lines[0].split(" ");
-            if (parts.length > 1) {
-                return parts[1];
-            }
+                return new Workload.Request("GET", "/", null, -1);
         }
-        return "Unknown";
     }
-}
\ No newline at end of file
+}
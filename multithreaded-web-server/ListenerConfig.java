@@ -0,0 +1,32 @@
+// Listener tuning shared by Server and ProxyServer. Zero buffer sizes keep the OS defaults.
+public class ListenerConfig {
+    public final int acceptorCount;
+    public final boolean reusePort;
+    public final int backlog;
+    public final boolean tcpNoDelay;
+    public final int receiveBufferSize;
+    public final int sendBufferSize;
+
+    public ListenerConfig(int acceptorCount, boolean reusePort, int backlog,
+                          boolean tcpNoDelay, int receiveBufferSize, int sendBufferSize) {
+        if (acceptorCount < 1) {
+            throw new IllegalArgumentException("Need at least one acceptor");
+        }
+        this.acceptorCount = acceptorCount;
+        this.reusePort = reusePort;
+        this.backlog = backlog;
+        this.tcpNoDelay = tcpNoDelay;
+        this.receiveBufferSize = receiveBufferSize;
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    // Same behaviour as a plain new ServerSocket(port): one acceptor, backlog of 50
+    public static ListenerConfig defaults() {
+        return new ListenerConfig(1, false, 50, false, 0, 0);
+    }
+
+    // One SO_REUSEPORT acceptor per core so the kernel spreads connections across them
+    public static ListenerConfig perCore() {
+        return new ListenerConfig(Runtime.getRuntime().availableProcessors(), true, 1024, true, 0, 0);
+    }
+}
@@ -0,0 +1,357 @@
+import java.io.*;
+import java.net.*;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Shares one cache keyspace between several proxies. Every key has an owner on the
+// consistent-hash ring; non-owners ask the owner over a small binary protocol.
+public class PeerCache {
+    // Wire protocol: [magic][op][key as UTF] then [int length][bytes] for PUT.
+    // Replies are a single status byte, followed by [int length][bytes] for a HIT.
+    private static final byte MAGIC = 'P';
+    private static final byte OP_GET = 1;
+    private static final byte OP_PUT = 2;
+    private static final byte STATUS_HIT = 0;
+    private static final byte STATUS_MISS = 1;
+    private static final byte STATUS_OK = 2;
+
+    private static final int CONNECT_TIMEOUT_MS = 500;
+    private static final int READ_TIMEOUT_MS = 2000;
+    private static final int MAX_POOLED_CONNECTIONS = 8;
+    private static final int MAX_TRACKED_KEYS = 10000;
+    private static final int MAX_VALUE_BYTES = 4 * 1024 * 1024; // Larger values are not shared between peers
+
+    private final String selfId;
+    private final int peerPort;
+    private final List<String> peers;
+    private final ConsistentHashRing ring;
+    private final Map<String, byte[]> localStore;
+    private final ProxyServerUI ui;
+    private final ExecutorService peerThreadPool;
+    private final Map<String, BlockingQueue<PeerConnection>> connections = new ConcurrentHashMap<>();
+
+    // Hot-key near-cache: keys fetched from a remote owner often enough are kept locally
+    // for a short time so the heaviest keys skip the ring hop
+    private final Map<String, AtomicInteger> remoteFetchCounts = new ConcurrentHashMap<>();
+    private final Map<String, NearEntry> nearCache;
+    private final int hotKeyThreshold;
+    private final long nearCacheTtlMillis;
+
+    private volatile boolean isRunning = true;
+    private ServerSocket peerSocket;
+    private Set<InetAddress> peerAddresses; // Only these hosts may connect to the peer port
+
+    private static class NearEntry {
+        final byte[] value;
+        final long expiresAt;
+
+        NearEntry(byte[] value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class PeerConnection {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        PeerConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    public PeerCache(String selfId, List<String> peers, int virtualNodes, Map<String, byte[]> localStore,
+                     int nearCacheCapacity, int hotKeyThreshold, long nearCacheTtlMillis, ProxyServerUI ui) {
+        if (!peers.contains(selfId)) {
+            throw new IllegalArgumentException("Peer list must include this proxy (" + selfId + ")");
+        }
+        this.selfId = selfId;
+        this.peerPort = portOf(selfId);
+        this.peers = peers;
+        this.ring = new ConsistentHashRing(peers, virtualNodes);
+        this.localStore = localStore;
+        this.hotKeyThreshold = hotKeyThreshold;
+        this.nearCacheTtlMillis = nearCacheTtlMillis;
+        this.ui = ui;
+        this.peerThreadPool = Executors.newCachedThreadPool();
+        this.nearCache = Collections.synchronizedMap(new LinkedHashMap<String, NearEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, NearEntry> eldest) {
+                return size() > nearCacheCapacity;
+            }
+        });
+    }
+
+    // With reusePort, a replacement proxy can bind the peer port while this one drains.
+    // The listener binds only to this proxy's own peer address, not every interface.
+    public void start(boolean reusePort) {
+        try {
+            peerAddresses = resolvePeers();
+            peerSocket = new ServerSocket();
+            peerSocket.setReuseAddress(true);
+            if (reusePort && peerSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                peerSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            peerSocket.bind(new InetSocketAddress(hostOf(selfId), peerPort));
+            ui.addLog("PEER", "Peer cache listening on port " + peerPort, "SYSTEM", "SUCCESS");
+        } catch (IOException e) {
+            ui.addLog("PEER ERROR", "Failed to start peer listener", "SYSTEM", "ERROR: " + e.getMessage());
+            return;
+        }
+
+        Thread acceptThread = new Thread(() -> {
+            while (isRunning) {
+                try {
+                    Socket socket = peerSocket.accept();
+                    if (!peerAddresses.contains(socket.getInetAddress())) {
+                        ui.addLog("PEER ERROR", "Connection refused", socket.getInetAddress().getHostAddress(), "ERROR: not a configured peer");
+                        socket.close();
+                        continue;
+                    }
+                    peerThreadPool.execute(() -> servePeer(socket));
+                } catch (IOException e) {
+                    if (!isRunning) break;
+                    ui.addLog("PEER ERROR", "Socket error", "SYSTEM", "ERROR: " + e.getMessage());
+                }
+            }
+        }, "peer-cache-acceptor");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public void stop() {
+        isRunning = false;
+        try {
+            if (peerSocket != null && !peerSocket.isClosed()) {
+                peerSocket.close();
+            }
+        } catch (IOException ignored) {}
+        peerThreadPool.shutdownNow();
+        for (BlockingQueue<PeerConnection> pool : connections.values()) {
+            PeerConnection conn;
+            while ((conn = pool.poll()) != null) {
+                conn.close();
+            }
+        }
+    }
+
+    // Lookup that never leaves this process: the near-cache, or the local store, which holds
+    // the keys this proxy owns plus values too large to send to their owner. Safe to call
+    // from an event loop.
+    public byte[] getLocal(String key) {
+        NearEntry near = nearCache.get(key);
+        if (near != null) {
+            if (near.expiresAt > System.currentTimeMillis()) {
+                return near.value;
+            }
+            nearCache.remove(key);
+        }
+        return localStore.get(key);
+    }
+
+    public byte[] get(String key) {
+        byte[] local = getLocal(key);
+        String owner = ring.ownerOf(key);
+        if (local != null || owner.equals(selfId)) {
+            return local;
+        }
+
+        byte[] value;
+        try {
+            value = remoteGet(owner, key);
+        } catch (IOException e) {
+            // An unreachable owner is just a miss; the caller falls back to the backend
+            ui.addLog("PEER ERROR", key, owner, "ERROR: " + e.getMessage());
+            return null;
+        }
+        if (value != null) {
+            recordRemoteFetch(key, value);
+        }
+        return value;
+    }
+
+    public void put(String key, byte[] value) {
+        String owner = ring.ownerOf(key);
+        if (owner.equals(selfId)) {
+            localStore.put(key, value);
+            return;
+        }
+        if (value.length > MAX_VALUE_BYTES) {
+            localStore.put(key, value); // The owner would refuse it, so only this proxy keeps a copy
+            return;
+        }
+
+        try {
+            remotePut(owner, key, value);
+        } catch (IOException e) {
+            ui.addLog("PEER ERROR", key, owner, "ERROR: " + e.getMessage());
+        }
+        if (nearCache.containsKey(key)) {
+            nearCache.put(key, new NearEntry(value, System.currentTimeMillis() + nearCacheTtlMillis));
+        }
+    }
+
+    private void recordRemoteFetch(String key, byte[] value) {
+        // Counts are reset wholesale rather than aged, which is enough to keep the map bounded
+        if (remoteFetchCounts.size() > MAX_TRACKED_KEYS) {
+            remoteFetchCounts.clear();
+        }
+        int count = remoteFetchCounts.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+        if (count >= hotKeyThreshold) {
+            nearCache.put(key, new NearEntry(value, System.currentTimeMillis() + nearCacheTtlMillis));
+            remoteFetchCounts.remove(key);
+        }
+    }
+
+    private byte[] remoteGet(String owner, String key) throws IOException {
+        PeerConnection conn = borrow(owner);
+        try {
+            conn.out.writeByte(MAGIC);
+            conn.out.writeByte(OP_GET);
+            conn.out.writeUTF(key);
+            conn.out.flush();
+
+            byte status = conn.in.readByte();
+            byte[] value = status == STATUS_HIT ? readValue(conn.in) : null;
+            release(owner, conn);
+            return value;
+        } catch (IOException e) {
+            conn.close();
+            throw e;
+        }
+    }
+
+    private void remotePut(String owner, String key, byte[] value) throws IOException {
+        PeerConnection conn = borrow(owner);
+        try {
+            conn.out.writeByte(MAGIC);
+            conn.out.writeByte(OP_PUT);
+            conn.out.writeUTF(key);
+            writeValue(conn.out, value);
+            conn.out.flush();
+
+            conn.in.readByte();
+            release(owner, conn);
+        } catch (IOException e) {
+            conn.close();
+            throw e;
+        }
+    }
+
+    private void servePeer(Socket socket) {
+        try {
+            socket.setSoTimeout(0); // Peer connections are pooled and may sit idle between requests
+            PeerConnection conn = new PeerConnection(socket);
+            while (isRunning) {
+                byte magic;
+                try {
+                    magic = conn.in.readByte();
+                } catch (EOFException e) {
+                    break; // Peer closed its pooled connection
+                }
+                if (magic != MAGIC) {
+                    ui.addLog("PEER ERROR", "Bad frame", socket.getInetAddress().getHostAddress(), "ERROR: bad magic");
+                    break;
+                }
+
+                byte op = conn.in.readByte();
+                String key = conn.in.readUTF();
+                if (op == OP_GET) {
+                    byte[] value = localStore.get(key);
+                    if (value != null) {
+                        conn.out.writeByte(STATUS_HIT);
+                        writeValue(conn.out, value);
+                    } else {
+                        conn.out.writeByte(STATUS_MISS);
+                    }
+                } else if (op == OP_PUT) {
+                    localStore.put(key, readValue(conn.in));
+                    conn.out.writeByte(STATUS_OK);
+                } else {
+                    break;
+                }
+                conn.out.flush();
+            }
+        } catch (IOException e) {
+            if (isRunning) {
+                ui.addLog("PEER ERROR", "Peer connection error", socket.getInetAddress().getHostAddress(), "ERROR: " + e.getMessage());
+            }
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private PeerConnection borrow(String peer) throws IOException {
+        PeerConnection conn = connections.computeIfAbsent(peer, p -> new LinkedBlockingQueue<>()).poll();
+        if (conn != null) {
+            return conn;
+        }
+
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(hostOf(peer), portOf(peer)), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            return new PeerConnection(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void release(String peer, PeerConnection conn) {
+        BlockingQueue<PeerConnection> pool = connections.get(peer);
+        if (pool.size() >= MAX_POOLED_CONNECTIONS || !pool.offer(conn)) {
+            conn.close();
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, byte[] value) throws IOException {
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    // The length comes from the remote side, so it is checked before anything is allocated
+    private static byte[] readValue(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_VALUE_BYTES) {
+            throw new IOException("Bad value length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private Set<InetAddress> resolvePeers() throws UnknownHostException {
+        Set<InetAddress> addresses = new HashSet<>();
+        for (String peer : peers) {
+            Collections.addAll(addresses, InetAddress.getAllByName(hostOf(peer)));
+        }
+        return addresses;
+    }
+
+    private static String hostOf(String peer) {
+        return peer.substring(0, peer.lastIndexOf(':'));
+    }
+
+    private static int portOf(String peer) {
+        return Integer.parseInt(peer.substring(peer.lastIndexOf(':') + 1));
+    }
+}
@@ -1,20 +1,39 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 public class ProxyServer {
+    // Peer mode tuning
+    private static final int PEER_VIRTUAL_NODES = 100;        // Ring points per proxy; more spreads keys more evenly
+    private static final int NEAR_CACHE_CAPACITY = 64;        // Hot remote keys kept locally
+    private static final int HOT_KEY_THRESHOLD = 3;           // Remote fetches before a key counts as hot
+    private static final long NEAR_CACHE_TTL_MILLIS = 5000;   // How long a near-cached copy may be served
+
     private final ExecutorService threadPool;
     private volatile boolean isRunning = true;
-    private ServerSocket serverSocket;
+    private final AtomicBoolean stopping = new AtomicBoolean();
+    private final AcceptorGroup listeners;
     private final int proxyPort;
     private final String targetHost;
     private final int targetPort;
-    private final LRUCache cache;
+    private final Map<String, byte[]> cache;
+    private final PeerCache peerCache; // null unless peer mode is enabled
     private final ProxyServerUI ui;
+    private final BufferPool bufferPool = BufferPool.shared();
+    private final TimerWheel timerWheel = TimerWheel.shared();
+    private final TimeoutConfig timeouts;
+    private final ListenerConfig listenerConfig;
+    private final RateLimiter rateLimiter;
+    private final SlowRequestSampler slowRequests = new SlowRequestSampler(20, 10_000);
 
-    private static class LRUCache extends LinkedHashMap<String, String> {
+    private static class LRUCache extends LinkedHashMap<String, byte[]> {
         private final int capacity;
 
         public LRUCache(int capacity) {
@@ -23,34 +42,80 @@ public class ProxyServer {
         }
 
         @Override
-        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
             return size() > capacity;
         }
     }
 
     public ProxyServer(int proxyPort, String targetHost, int targetPort, int cacheCapacity, ProxyServerUI ui) {
+        this(proxyPort, targetHost, targetPort, cacheCapacity, ui, null, null, ListenerConfig.defaults());
+    }
+
+    // Peer mode: peers are "host:peerPort" entries (including this proxy's own selfPeerId)
+    // forming a consistent-hash ring, so each cached object lives on exactly one proxy
+    public ProxyServer(int proxyPort, String targetHost, int targetPort, int cacheCapacity, ProxyServerUI ui,
+                       String selfPeerId, List<String> peers, ListenerConfig listenerConfig) {
+        this(proxyPort, targetHost, targetPort, cacheCapacity, ui, selfPeerId, peers, listenerConfig, TimeoutConfig.defaults());
+    }
+
+    public ProxyServer(int proxyPort, String targetHost, int targetPort, int cacheCapacity, ProxyServerUI ui,
+                       String selfPeerId, List<String> peers, ListenerConfig listenerConfig, TimeoutConfig timeouts) {
+        this(proxyPort, targetHost, targetPort, cacheCapacity, ui, selfPeerId, peers, listenerConfig, timeouts,
+            RateLimitConfig.disabled());
+    }
+
+    public ProxyServer(int proxyPort, String targetHost, int targetPort, int cacheCapacity, ProxyServerUI ui,
+                       String selfPeerId, List<String> peers, ListenerConfig listenerConfig, TimeoutConfig timeouts,
+                       RateLimitConfig rateLimits) {
+        this.timeouts = timeouts;
+        this.listenerConfig = listenerConfig;
+        this.rateLimiter = new RateLimiter(rateLimits);
         this.threadPool = Executors.newFixedThreadPool(10);
         this.proxyPort = proxyPort;
         this.targetHost = targetHost;
         this.targetPort = targetPort;
-        this.cache = new LRUCache(cacheCapacity);
+        this.cache = Collections.synchronizedMap(new LRUCache(cacheCapacity)); // Shared with peer threads
         this.ui = ui;
+        this.peerCache = peers == null ? null
+            : new PeerCache(selfPeerId, peers, PEER_VIRTUAL_NODES, cache,
+                NEAR_CACHE_CAPACITY, HOT_KEY_THRESHOLD, NEAR_CACHE_TTL_MILLIS, ui);
+        this.listeners = new AcceptorGroup("proxy", proxyPort, listenerConfig, new AcceptorGroup.RequestHandler() {
+            @Override
+            public ByteBuffer tryFastPath(SocketChannel channel, ByteBuffer request, int headEnd, RequestTrace trace) {
+                // Over-limit requests are refused before any cache or upstream work
+                ByteBuffer rejection = rateLimiter.check(channel, request, headEnd);
+                if (rejection != null) {
+                    ui.incrementTotalRequests();
+                    return rejection;
+                }
+                ByteBuffer traces = slowRequests.tryServe(channel, request, headEnd);
+                return traces != null ? traces : serveCacheHit(request, headEnd, trace);
+            }
+
+            @Override
+            public void handOff(SocketChannel channel, ByteBuffer request, int headEnd, RequestDeadline deadline,
+                                RequestTrace trace) {
+                threadPool.execute(() -> handleClient(channel, request, headEnd, deadline, trace));
+            }
+
+            @Override
+            public void fastPathWritten(RequestTrace trace) {
+                if (trace.hasRequest()) {
+                    slowRequests.record(trace);
+                }
+            }
+        }, timeouts, ui);
     }
 
     public void start() {
         try {
-            serverSocket = new ServerSocket(proxyPort);
+            listeners.open();
             ui.addLog("PROXY", "Proxy started on port " + proxyPort, "SYSTEM", "SUCCESS");
-
-            while (isRunning) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    threadPool.execute(() -> handleClient(clientSocket));
-                } catch (SocketException e) {
-                    if (!isRunning) break;
-                    ui.addLog("PROXY ERROR", "Socket error", "SYSTEM", "ERROR: " + e.getMessage());
-                }
+            if (peerCache != null) {
+                peerCache.start(listenerConfig.reusePort); // A handover replacement shares the peer port too
             }
+
+            listeners.run(); // Accept loops run until stop() has drained them
         } catch (IOException e) {
             if (isRunning) {
                 ui.addLog("PROXY ERROR", "Failed to start proxy", "SYSTEM", "ERROR: " + e.getMessage());
@@ -58,44 +123,76 @@ public class ProxyServer {
         }
     }
 
-    private void handleClient(Socket clientSocket) {
-        String clientIP = clientSocket.getInetAddress().getHostAddress();
-        
-        try (
-            BufferedReader clientIn = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            PrintWriter clientOut = new PrintWriter(clientSocket.getOutputStream(), true)
-        ) {
-            // Read request line
-            String requestLine = clientIn.readLine();
-            if (requestLine == null) return;
-            
-            String[] requestParts = requestLine.split(" ");
+    // Hit path, run on the event loop that read the request head: a GET whose response is in
+    // the local cache is answered from the stored bytes without touching the thread pool.
+    // Hits skip the per-request UI log row; the counters still see them.
+    private ByteBuffer serveCacheHit(ByteBuffer request, int headEnd, RequestTrace trace) {
+        if (headEnd < 5 || request.get(0) != 'G' || request.get(1) != 'E' || request.get(2) != 'T' || request.get(3) != ' ') {
+            return null;
+        }
+        int requestLineEnd = ChannelIO.lineEnd(request, 0, headEnd);
+        int pathEnd = 4;
+        while (pathEnd < requestLineEnd && request.get(pathEnd) != ' ') pathEnd++;
+
+        String cacheKey = ChannelIO.decode(request, 0, pathEnd); // Same "GET <path>" key as the worker path
+        byte[] cachedResponse = peerCache != null ? peerCache.getLocal(cacheKey) : cache.get(cacheKey);
+        if (cachedResponse == null) {
+            return null;
+        }
+        trace.mark(RequestTrace.CACHE_CHECKED);
+        trace.setRequest(cacheKey);
+        trace.setStatus(200); // Only 200 responses are cached
+        ui.incrementTotalRequests();
+        ui.incrementCacheHits();
+        return ByteBuffer.wrap(cachedResponse);
+    }
+
+    // Worker side: misses and anything the event loop declined, with the head already read
+    private void handleClient(SocketChannel clientChannel, ByteBuffer requestBuffer, int headEnd, RequestDeadline deadline,
+                              RequestTrace trace) {
+        trace.mark(RequestTrace.STARTED);
+        String clientIP = clientChannel.socket().getInetAddress().getHostAddress();
+        ByteBuffer responseBuffer = null;
+
+        try {
+            int requestLineEnd = ChannelIO.lineEnd(requestBuffer, 0, headEnd);
+            String[] requestParts = ChannelIO.decode(requestBuffer, 0, requestLineEnd).split(" ");
             if (requestParts.length < 2) return;
             
             String method = requestParts[0];
             String path = requestParts[1];
-            
-            // Read headers
-            StringBuilder headers = new StringBuilder();
-            String line;
-            while ((line = clientIn.readLine()) != null && !line.isEmpty()) {
-                headers.append(line).append("\n");
+
+            // Honour a budget from a caller further upstream, if there is one
+            String callerBudget = ChannelIO.headerValue(requestBuffer, headEnd, RequestDeadline.BUDGET_HEADER);
+            if (callerBudget != null) {
+                try {
+                    deadline.limitTo(Long.parseLong(callerBudget));
+                } catch (NumberFormatException ignored) {}
             }
+            // A client that sent its own trace ID keeps it, and its header is forwarded as is
+            String callerTraceId = ChannelIO.headerValue(requestBuffer, headEnd, RequestTrace.TRACE_HEADER);
+            trace.adoptId(callerTraceId);
             
             // Update total requests
             ui.incrementTotalRequests();
             
             // Create cache key
             String cacheKey = method + " " + path;
+            trace.setRequest(cacheKey);
+            trace.mark(RequestTrace.PARSED);
             
             // Check cache for GET requests
             if (method.equalsIgnoreCase("GET")) {
-                String cachedResponse = cache.get(cacheKey);
+                byte[] cachedResponse = peerCache != null ? peerCache.get(cacheKey) : cache.get(cacheKey);
+                trace.mark(RequestTrace.CACHE_CHECKED);
                 if (cachedResponse != null) {
                     ui.incrementCacheHits();
                     ui.addLog("CACHE HIT", path, clientIP, "SERVED FROM CACHE");
-                    clientOut.println(cachedResponse);
-                    clientOut.flush();
+                    requestBuffer.clear();
+                    ChannelIO.writeBytes(clientChannel, requestBuffer, cachedResponse);
+                    ChannelIO.flush(clientChannel, requestBuffer);
+                    trace.mark(RequestTrace.WRITTEN);
+                    trace.setStatus(200);
                     return;
                 }
             }
@@ -104,65 +201,189 @@ public class ProxyServer {
             ui.addLog("CACHE MISS", path, clientIP, "FORWARDING TO SERVER");
 
             // Forward request to server
-            try (Socket targetSocket = new Socket(targetHost, targetPort);
-                 PrintWriter targetOut = new PrintWriter(targetSocket.getOutputStream(), true);
-                 BufferedReader targetIn = new BufferedReader(new InputStreamReader(targetSocket.getInputStream()))) {
-
-                // Forward request
-                targetOut.println(requestLine);
-                targetOut.println(headers.toString());
-                targetOut.println();
-                targetOut.flush();
-
-                // Read response
-                StringBuilder response = new StringBuilder();
-                String responseLine = targetIn.readLine();
-                if (responseLine == null) return;
-                
-                response.append(responseLine).append("\n");
-                
-                // Read headers
-                while ((line = targetIn.readLine()) != null && !line.isEmpty()) {
-                    response.append(line).append("\n");
-                }
-                
-                // Read body
-                response.append("\n");
-                while ((line = targetIn.readLine()) != null) {
-                    response.append(line).append("\n");
+            try (SocketChannel targetChannel = SocketChannel.open()) {
+                deadline.watch(targetChannel);
+                deadline.enterPhase("connect", timeouts.connectTimeoutMillis);
+                long connectTimeout = Math.min(timeouts.connectTimeoutMillis, deadline.remainingMillis());
+                if (connectTimeout <= 0) {
+                    throw new SocketTimeoutException("No time left to connect");
                 }
+                targetChannel.socket().connect(new InetSocketAddress(targetHost, targetPort), (int) connectTimeout);
+                trace.mark(RequestTrace.UPSTREAM_CONNECTED);
 
-                String responseStr = response.toString();
+                // Forward the request as received, plus the time the server has left to answer
+                forwardRequest(targetChannel, requestBuffer, deadline.remainingMillis(),
+                    callerTraceId == null ? trace.idString() : null);
+                trace.mark(RequestTrace.UPSTREAM_SENT);
+
+                // Read response until the server closes the connection
+                deadline.enterPhase("upstream header read", timeouts.headerReadTimeoutMillis);
+                responseBuffer = bufferPool.acquire(ChannelIO.HEAD_BUFFER_SIZE);
+                int firstRead = targetChannel.read(responseBuffer);
+                if (firstRead >= 0) {
+                    trace.mark(RequestTrace.UPSTREAM_FIRST_BYTE);
+                }
+                if (firstRead < 0 || ChannelIO.readHead(targetChannel, responseBuffer, deadline) < 0) {
+                    // e.g. the server dropped a request whose budget had run out
+                    ui.addLog("PROXY ERROR", "Backend closed before responding", clientIP, "ERROR: " + path);
+                    sendError(clientChannel, requestBuffer, trace, "502 Bad Gateway");
+                    return;
+                }
+                deadline.enterPhase("upstream body read", timeouts.bodyReadTimeoutMillis);
+                ByteBuffer headBuffer = responseBuffer;
+                responseBuffer = null; // readToEnd owns it now and releases it if the read fails
+                responseBuffer = ChannelIO.readToEnd(targetChannel, headBuffer, bufferPool, deadline);
+                trace.mark(RequestTrace.UPSTREAM_COMPLETE);
+                int responseLength = responseBuffer.position();
+                int statusLineEnd = ChannelIO.lineEnd(responseBuffer, 0, responseLength);
+                String responseLine = ChannelIO.decode(responseBuffer, 0, statusLineEnd);
+                trace.setStatus(statusCode(responseLine));
                 
                 // Cache GET responses
                 if (method.equalsIgnoreCase("GET") && responseLine.contains("200 OK")) {
-                    cache.put(cacheKey, responseStr);
+                    byte[] responseBytes = ChannelIO.toBytes(responseBuffer, 0, responseLength);
+                    if (peerCache != null) {
+                        peerCache.put(cacheKey, responseBytes);
+                    } else {
+                        cache.put(cacheKey, responseBytes);
+                    }
                     ui.addLog("FORWARDED", path, clientIP, "RESPONSE CACHED");
                 }
                 
                 // Send response to client
-                clientOut.println(responseStr);
-                clientOut.flush();
+                deadline.watch(clientChannel);
+                ChannelIO.flush(clientChannel, responseBuffer);
+                trace.mark(RequestTrace.WRITTEN);
             }
+        } catch (SocketTimeoutException e) {
+            ui.addLog("PROXY ERROR", "Backend connect timed out", clientIP, "TIMEOUT: " + e.getMessage());
+            sendError(clientChannel, requestBuffer, trace, "504 Gateway Timeout");
         } catch (Exception e) {
-            ui.addLog("PROXY ERROR", "Error handling client", clientIP, "ERROR: " + e.getMessage());
+            if (deadline.isExpired()) {
+                ui.addLog("PROXY ERROR", "Request timed out", clientIP, "TIMEOUT: " + deadline.getExpiredReason());
+                sendError(clientChannel, requestBuffer, trace, "504 Gateway Timeout");
+            } else {
+                ui.addLog("PROXY ERROR", "Error handling client", clientIP, "ERROR: " + e.getMessage());
+            }
         } finally {
+            deadline.cancel();
+            bufferPool.release(requestBuffer);
+            bufferPool.release(responseBuffer);
             try {
-                clientSocket.close();
+                clientChannel.close();
             } catch (IOException ignored) {}
+            trace.finish();
+            if (trace.hasRequest()) {
+                slowRequests.record(trace);
+            }
         }
     }
 
+    // traceId is added as a header unless null (the client's own header is already in the request)
+    private void forwardRequest(SocketChannel targetChannel, ByteBuffer request, long budgetMillis, String traceId)
+            throws IOException {
+        int length = request.position();
+        int afterRequestLine = ChannelIO.nextLine(request, 0, length);
+        ByteBuffer out = bufferPool.acquire(ChannelIO.HEAD_BUFFER_SIZE);
+        try {
+            ByteBuffer view = request.duplicate();
+            view.position(0).limit(afterRequestLine);
+            ChannelIO.writeBuffer(targetChannel, out, view);
+            ChannelIO.writeAscii(targetChannel, out, RequestDeadline.BUDGET_HEADER + ": " + budgetMillis + "\r\n");
+            if (traceId != null) {
+                ChannelIO.writeAscii(targetChannel, out, RequestTrace.TRACE_HEADER + ": " + traceId + "\r\n");
+            }
+            view.limit(length).position(afterRequestLine);
+            ChannelIO.writeBuffer(targetChannel, out, view);
+            ChannelIO.flush(targetChannel, out);
+        } finally {
+            bufferPool.release(out);
+        }
+    }
+
+    // status is e.g. "504 Gateway Timeout"
+    private void sendError(SocketChannel clientChannel, ByteBuffer buffer, RequestTrace trace, String status) {
+        if (!clientChannel.isOpen()) return; // The client's own limit closed it; nobody to answer
+        trace.setStatus(Integer.parseInt(status.substring(0, 3)));
+        try {
+            buffer.clear();
+            ChannelIO.writeAscii(clientChannel, buffer, "HTTP/1.1 " + status + "\r\n"
+                + "Content-Length: 0\r\n"
+                + "Connection: close\r\n"
+                + "\r\n");
+            ChannelIO.flush(clientChannel, buffer);
+            trace.mark(RequestTrace.WRITTEN);
+        } catch (IOException ignored) {}
+    }
+
+    // "HTTP/1.1 404 Not Found" -> 404, or 0 if the status line is malformed
+    private static int statusCode(String statusLine) {
+        int start = statusLine.indexOf(' ') + 1;
+        if (start == 0 || start + 3 > statusLine.length()) return 0;
+        try {
+            return Integer.parseInt(statusLine.substring(start, start + 3));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Graceful: in-flight requests get up to the total request timeout to finish
     public void stop() {
+        drain(timeouts.totalRequestTimeoutMillis);
+    }
+
+    // Stops accepting, lets accepted requests finish for up to timeoutMillis, then cuts off
+    // whatever is left. Cached and forwarded responses all carry "Connection: close" from the
+    // server, so no client reuses a connection to a draining proxy. Returns false if requests
+    // had to be cut off.
+    public boolean drain(long timeoutMillis) {
+        if (!stopping.compareAndSet(false, true)) return true;
         isRunning = false;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        boolean drained = false;
         try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
-                ui.addLog("PROXY", "Proxy stopped", "SYSTEM", "INFO");
+            listeners.stopAccepting();
+            ui.addLog("PROXY", "Proxy stopped accepting, draining requests", "SYSTEM", "INFO");
+            // The loops hand off their last requests before exiting, so the pool may only shut after them
+            drained = listeners.awaitStopped(timeoutMillis);
+            threadPool.shutdown();
+            drained &= threadPool.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            listeners.close();
+            if (!drained) {
+                List<Runnable> queued = threadPool.shutdownNow(); // Deadline passed; interrupt what is left
+                ui.addLog("PROXY", "Drain deadline passed", "SYSTEM", "WARNING: " + queued.size() + " queued requests dropped");
+            }
+            if (peerCache != null) {
+                peerCache.stop(); // Only now: draining requests may still have been asking peers
+            }
+            ui.addLog("PROXY", "Proxy stopped", "SYSTEM", "INFO");
+            rateLimiter.logStats(ui, "PROXY");
+            bufferPool.logStats(ui, "PROXY");
+        }
+        return drained;
+    }
+
+    // Zero-downtime restart, e.g. to change settings or cache capacity: next binds the same
+    // port alongside this proxy (both need ListenerConfig.reusePort), takes a copy of the
+    // cache so it does not start cold, and starts serving before this one drains. If next
+    // cannot bind, the exception is thrown and this proxy keeps running.
+    public boolean handOverTo(ProxyServer next) throws IOException {
+        if (next.proxyPort != proxyPort) {
+            throw new IllegalArgumentException("Replacement must listen on port " + proxyPort);
+        }
+        next.listeners.open();
+        synchronized (cache) {
+            // Least recently used first, so a smaller replacement keeps the most recent entries
+            for (Map.Entry<String, byte[]> entry : cache.entrySet()) {
+                next.cache.put(entry.getKey(), entry.getValue());
             }
-        } catch (IOException e) {
-            ui.addLog("PROXY ERROR", "Error stopping proxy", "SYSTEM", "ERROR: " + e.getMessage());
         }
-        threadPool.shutdown();
+        new Thread(next::start, "proxy-" + proxyPort).start();
+        ui.addLog("PROXY", "Handing over port " + proxyPort + " to new instance", "SYSTEM",
+            "INFO: " + next.cache.size() + " cached responses copied");
+        return drain(timeouts.totalRequestTimeoutMillis);
     }
-}
\ No newline at end of file
+}
@@ -18,6 +18,8 @@ public class ProxyServerUI extends JFrame {
     private JSpinner numLoopsSpinner;      // Added numLoopsSpinner
     private JSpinner proxyPortSpinner;
     private JSpinner serverPortSpinner;
+    private JSpinner acceptorsSpinner;
+    private JSpinner replaySpeedSpinner;
     private JComboBox<String> distributionCombo;
 
     // Control buttons
@@ -125,8 +127,22 @@ public class ProxyServerUI extends JFrame {
         gbc.gridx = 2; gbc.gridy = 1; gbc.gridwidth = 4; // Adjusted gridwidth
         panel.add(new JLabel("Request Distribution:"), gbc);
         gbc.gridx = 4; gbc.gridy = 1; gbc.gridwidth = 2;
-        distributionCombo = new JComboBox<>(new String[]{"Uniform", "Skewed (80/20)"});
+        distributionCombo = new JComboBox<>(new String[]{"Uniform", "Skewed (80/20)", "Zipf (s=1.0, 10k keys)", "Replay Access Log..."});
         panel.add(distributionCombo, gbc);
+
+        // Acceptor threads (more than one uses SO_REUSEPORT listeners)
+        gbc.gridx = 0; gbc.gridy = 2; gbc.gridwidth = 1;
+        panel.add(new JLabel("Acceptor Threads:"), gbc);
+        gbc.gridx = 1;
+        acceptorsSpinner = new JSpinner(new SpinnerNumberModel(1, 1, 64, 1));
+        panel.add(acceptorsSpinner, gbc);
+
+        // Replay speed (2.0 replays an access log twice as fast as recorded)
+        gbc.gridx = 2; gbc.gridy = 2;
+        panel.add(new JLabel("Replay Speed:"), gbc);
+        gbc.gridx = 3;
+        replaySpeedSpinner = new JSpinner(new SpinnerNumberModel(1.0, 0.1, 100.0, 0.5));
+        panel.add(replaySpeedSpinner, gbc);
         
         return panel;
     }
@@ -227,7 +243,7 @@ public class ProxyServerUI extends JFrame {
             int proxyPort = (Integer) proxyPortSpinner.getValue();
             int serverPort = (Integer) serverPortSpinner.getValue();
 
-            proxyServer = new ProxyServer(proxyPort, "localhost", serverPort, 1000, this);
+            proxyServer = new ProxyServer(proxyPort, "localhost", serverPort, 1000, this, null, null, listenerConfig());
             proxyThread = new Thread(() -> proxyServer.start());
             proxyThread.start();
 
@@ -246,7 +262,8 @@ public class ProxyServerUI extends JFrame {
 
     private void stopProxy() {
         if (proxyServer != null) {
-            proxyServer.stop();
+            ProxyServer draining = proxyServer;
+            new Thread(draining::stop, "proxy-drain").start(); // Waits for in-flight requests; keep the UI responsive
         }
 
         startProxyBtn.setEnabled(true);
@@ -261,7 +278,7 @@ public class ProxyServerUI extends JFrame {
         try {
             int serverPort = (Integer) serverPortSpinner.getValue();
 
-            mainServer = new Server(serverPort, this);
+            mainServer = new Server(serverPort, this, listenerConfig());
             serverThread = new Thread(() -> mainServer.start());
             serverThread.start();
 
@@ -280,7 +297,8 @@ public class ProxyServerUI extends JFrame {
 
     private void stopServer() {
         if (mainServer != null) {
-            mainServer.stop();
+            Server draining = mainServer;
+            new Thread(draining::stop, "server-drain").start(); // Waits for in-flight requests; keep the UI responsive
         }
 
         startServerBtn.setEnabled(true);
@@ -291,6 +309,11 @@ public class ProxyServerUI extends JFrame {
         addLog("SYSTEM", "Server stopped", "SYSTEM", "INFO");
     }
 
+    private ListenerConfig listenerConfig() {
+        int acceptors = (Integer) acceptorsSpinner.getValue();
+        return acceptors == 1 ? ListenerConfig.defaults() : new ListenerConfig(acceptors, true, 1024, true, 0, 0);
+    }
+
     // Corrected runTest method in ProxyServerUI.java
     private void runTest() {
         if (proxyServer == null || mainServer == null) {
@@ -306,14 +329,48 @@ public class ProxyServerUI extends JFrame {
         int numLoops = (Integer) numLoopsSpinner.getValue(); // Get number of loops
 
         int proxyPort = (Integer) proxyPortSpinner.getValue();
-        boolean isSkewed = distributionCombo.getSelectedIndex() == 1;
+        int distribution = distributionCombo.getSelectedIndex();
+        boolean isSkewed = distribution == 1;
+
+        // Replay runs at the log's own timing (scaled by the replay speed), so the request count and loops don't apply
+        ReplayWorkload replay = null;
+        if (distribution == 3) {
+            JFileChooser chooser = new JFileChooser(".");
+            chooser.setDialogTitle("Choose a JSONL access log");
+            if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            try {
+                replay = new ReplayWorkload(chooser.getSelectedFile().toPath(),
+                    ((Number) replaySpeedSpinner.getValue()).doubleValue());
+            } catch (IOException e) {
+                JOptionPane.showMessageDialog(this, "Failed to open access log: " + e.getMessage(),
+                    "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+        }
 
+        final ReplayWorkload replayWorkload = replay;
         ExecutorService testExecutor = Executors.newSingleThreadExecutor();
         testExecutor.execute(() -> {
             Client client = new Client("localhost", proxyPort, this);
-            // Pass the new parameters to Client.runTest
-            client.runTest(totalRequestsToGenerate, 60, numLoops, isSkewed); // Assuming 60 seconds duration for requests
-                                                                             // This Client.runTest signature needs to be implemented
+            if (replayWorkload != null) {
+                try (ReplayWorkload workload = replayWorkload) {
+                    client.runReplay(workload);
+                } catch (IOException | IllegalStateException e) {
+                    addLog("SYSTEM ERROR", "Replay failed", "SYSTEM", "ERROR: " + e.getMessage());
+                }
+                return;
+            }
+            if (distribution == 2) {
+                // 90% reads over a Zipf keyspace, object sizes from 256 B to 64 KB
+                client.runTest(totalRequestsToGenerate, 60, numLoops, new SyntheticWorkload(
+                    SyntheticWorkload.KeyDistribution.ZIPF, 1.0, 10000, 256, 64 * 1024, 1.2, 0.9, System.nanoTime()));
+            } else {
+                // Pass the new parameters to Client.runTest
+                client.runTest(totalRequestsToGenerate, 60, numLoops, isSkewed); // Assuming 60 seconds duration for requests
+                                                                                 // This Client.runTest signature needs to be implemented
+            }
 
             SwingUtilities.invokeLater(() -> {
                 addLog("SYSTEM", "Test completed: " + totalRequestsToGenerate + " requests per 60s for " + numLoops + " loops",
@@ -322,8 +379,9 @@ public class ProxyServerUI extends JFrame {
         });
         testExecutor.shutdown();
         
-        addLog("SYSTEM", "Starting test: " + totalRequestsToGenerate + " requests per 60s for " + numLoops + " loops (" +
-            (isSkewed ? "skewed" : "uniform") + " distribution)", "SYSTEM", "INFO");
+        addLog("SYSTEM", replayWorkload != null ? "Starting access log replay" : "Starting test: " + totalRequestsToGenerate
+            + " requests per 60s for " + numLoops + " loops (" + distributionCombo.getSelectedItem() + " distribution)",
+            "SYSTEM", "INFO");
     }
 
     public void resetMetrics() {
@@ -0,0 +1,27 @@
+// Request limits per client IP and per route (first path segment, e.g. "/api").
+// Rates are requests per second; a rate of 0 turns that limit off.
+// The IP is the connection's peer address: behind ProxyServer every request Server sees
+// comes from the proxy, so per-IP limits belong on the proxy.
+public class RateLimitConfig {
+    public final double perIpRate;
+    public final int perIpBurst;
+    public final double perRouteRate;
+    public final int perRouteBurst;
+    public final int maxTrackedKeys; // Per limit; keys beyond this share one bucket
+
+    public RateLimitConfig(double perIpRate, int perIpBurst, double perRouteRate, int perRouteBurst, int maxTrackedKeys) {
+        this.perIpRate = perIpRate;
+        this.perIpBurst = perIpBurst;
+        this.perRouteRate = perRouteRate;
+        this.perRouteBurst = perRouteBurst;
+        this.maxTrackedKeys = maxTrackedKeys;
+    }
+
+    public static RateLimitConfig disabled() {
+        return new RateLimitConfig(0, 1, 0, 1, 0);
+    }
+
+    public static RateLimitConfig perIp(double rate, int burst) {
+        return new RateLimitConfig(rate, burst, 0, 1, 100_000);
+    }
+}
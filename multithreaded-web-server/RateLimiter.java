@@ -0,0 +1,168 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Admission check run on the event loop before a request reaches a worker thread, so a
+// single noisy client is answered with 429 instead of occupying the pool.
+// Each limit is a GCRA ("virtual scheduling" token bucket) per key.
+public class RateLimiter {
+    private static final byte[] TOO_MANY_REQUESTS = ("HTTP/1.1 429 Too Many Requests\r\n"
+        + "Retry-After: 1\r\n"
+        + "Content-Length: 0\r\n"
+        + "Connection: close\r\n"
+        + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private final Buckets perIp;    // null when that limit is off
+    private final Buckets perRoute;
+    private final LongAdder rejected = new LongAdder();
+
+    public RateLimiter(RateLimitConfig config) {
+        this.perIp = config.perIpRate > 0
+            ? new Buckets(config.perIpRate, config.perIpBurst, config.maxTrackedKeys) : null;
+        this.perRoute = config.perRouteRate > 0
+            ? new Buckets(config.perRouteRate, config.perRouteBurst, config.maxTrackedKeys) : null;
+    }
+
+    public boolean isEnabled() {
+        return perIp != null || perRoute != null;
+    }
+
+    // Returns the 429 response to send, or null if the request may proceed.
+    // A rejected request is not charged to either limit.
+    public ByteBuffer check(SocketChannel channel, ByteBuffer request, int headEnd) {
+        String ip = perIp != null ? channel.socket().getInetAddress().getHostAddress() : null;
+        if (ip != null && !perIp.tryAcquire(ip)) {
+            rejected.increment();
+            return ByteBuffer.wrap(TOO_MANY_REQUESTS);
+        }
+        if (perRoute != null && !perRoute.tryAcquire(route(request, headEnd))) {
+            if (ip != null) {
+                perIp.refund(ip);
+            }
+            rejected.increment();
+            return ByteBuffer.wrap(TOO_MANY_REQUESTS);
+        }
+        return null;
+    }
+
+    public long rejectedCount() {
+        return rejected.sum();
+    }
+
+    public void logStats(ProxyServerUI ui, String type) {
+        if (!isEnabled()) return;
+        ui.addLog(type, "Rate limiter", "SYSTEM", "REJECTED: " + rejected.sum()
+            + ", TRACKED IPS: " + (perIp != null ? perIp.size() : 0)
+            + ", TRACKED ROUTES: " + (perRoute != null ? perRoute.size() : 0));
+    }
+
+    // First path segment of the request line: "GET /api/data?id=1 HTTP/1.1" -> "/api"
+    static String route(ByteBuffer request, int headEnd) {
+        int requestLineEnd = ChannelIO.lineEnd(request, 0, headEnd);
+        int start = 0;
+        while (start < requestLineEnd && request.get(start) != ' ') start++;
+        start++;
+        int end = start + 1;
+        while (end < requestLineEnd) {
+            byte b = request.get(end);
+            if (b == '/' || b == '?' || b == ' ') break;
+            end++;
+        }
+        return start < requestLineEnd ? ChannelIO.decode(request, start, Math.min(end, requestLineEnd)) : "/";
+    }
+
+    // Keyed GCRA store. A key's whole state is one long - its theoretical arrival time - updated
+    // with CAS, so checks never lock. Keys whose bucket has refilled carry no information and are
+    // swept out; past maxKeys, new keys share one overflow bucket so memory stays bounded.
+    // The sweep runs on the callers (event loops), a small batch of keys per call.
+    static class Buckets {
+        private static final long SWEEP_INTERVAL_NANOS = 1_000_000_000L;
+        private static final int SWEEP_BATCH = 64;
+        private static final long FULL = Long.MIN_VALUE / 2; // An arrival time long past
+
+        private final long emissionIntervalNanos; // Time for one token to refill
+        private final long burstToleranceNanos;   // How far ahead of schedule a key may run
+        private final int maxKeys;
+        private final Map<String, AtomicLong> arrivalTimes = new ConcurrentHashMap<>();
+        private final AtomicLong overflow = new AtomicLong(FULL);
+        private final AtomicBoolean sweeping = new AtomicBoolean();
+        private Iterator<AtomicLong> sweepCursor; // Only touched while holding sweeping
+        private volatile long nextSweepNanos = System.nanoTime() + SWEEP_INTERVAL_NANOS;
+
+        Buckets(double ratePerSecond, int burst, int maxKeys) {
+            if (ratePerSecond <= 0 || burst < 1) {
+                throw new IllegalArgumentException("Rate and burst must be positive");
+            }
+            this.emissionIntervalNanos = Math.max(1, (long) (1_000_000_000L / ratePerSecond));
+            this.burstToleranceNanos = emissionIntervalNanos * (burst - 1);
+            this.maxKeys = maxKeys;
+        }
+
+        // A rejected call consumes nothing
+        boolean tryAcquire(String key) {
+            long now = System.nanoTime();
+            if (now - nextSweepNanos >= 0) {
+                sweep(now);
+            }
+
+            AtomicLong state = arrivalTimes.get(key);
+            if (state == null) {
+                state = arrivalTimes.size() >= maxKeys ? overflow
+                    : arrivalTimes.computeIfAbsent(key, k -> new AtomicLong(FULL));
+            }
+
+            while (true) {
+                long arrival = state.get();
+                long scheduled = Math.max(arrival, now);
+                if (scheduled - now > burstToleranceNanos) {
+                    return false;
+                }
+                if (state.compareAndSet(arrival, scheduled + emissionIntervalNanos)) {
+                    return true;
+                }
+            }
+        }
+
+        // Gives back what an accepted tryAcquire took, e.g. when another limit then rejected the request
+        void refund(String key) {
+            AtomicLong state = arrivalTimes.get(key);
+            if (state == null) {
+                state = overflow;
+            }
+            state.addAndGet(-emissionIntervalNanos);
+        }
+
+        int size() {
+            return arrivalTimes.size();
+        }
+
+        // Checks up to SWEEP_BATCH keys and carries on from there on the next call, so no single
+        // request pays for a pass over every key. Only one caller sweeps at a time; the others
+        // carry on without waiting.
+        private void sweep(long now) {
+            if (!sweeping.compareAndSet(false, true)) return;
+            try {
+                if (sweepCursor == null) {
+                    sweepCursor = arrivalTimes.values().iterator();
+                }
+                for (int i = 0; i < SWEEP_BATCH && sweepCursor.hasNext(); i++) {
+                    if (sweepCursor.next().get() <= now) {
+                        sweepCursor.remove(); // Re-adding it later starts from the same full bucket
+                    }
+                }
+                if (!sweepCursor.hasNext()) {
+                    sweepCursor = null;
+                    nextSweepNanos = now + SWEEP_INTERVAL_NANOS;
+                }
+            } finally {
+                sweeping.set(false);
+            }
+        }
+    }
+}
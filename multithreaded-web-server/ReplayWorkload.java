@@ -0,0 +1,131 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Replays a recorded access log, one JSON object per line. Recognised fields:
+//   "method" (default GET), "path" / "url" / "uri", "body",
+//   "ts" / "timestamp" / "time" in milliseconds.
+// Lines without a path use "key" / "id" / "request_id" as the key of an /api/data GET,
+// so any keyed JSONL log can drive the proxy cache. Without timestamps the caller paces.
+public class ReplayWorkload implements Workload, AutoCloseable {
+    private final BufferedReader reader;
+    private final double timeScale; // 2.0 replays twice as fast as recorded
+    private long firstTimestamp = -1;
+    private int lineNumber;
+
+    public ReplayWorkload(Path log, double timeScale) throws IOException {
+        if (timeScale <= 0) {
+            throw new IllegalArgumentException("Time scale must be positive");
+        }
+        this.reader = Files.newBufferedReader(log, StandardCharsets.UTF_8);
+        this.timeScale = timeScale;
+    }
+
+    @Override
+    public synchronized Request next() {
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                Request request = parse(line);
+                if (request != null) return request;
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalStateException("Bad access log line " + lineNumber + ": " + e.getMessage(), e);
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private Request parse(String line) {
+        String path = firstField(line, "path", "url", "uri");
+        if (path == null) {
+            String key = firstField(line, "key", "id", "request_id");
+            if (key == null) return null; // Nothing to replay on this line
+            path = "/api/data?id=" + URLEncoder.encode(key, StandardCharsets.UTF_8);
+        }
+        String method = firstField(line, "method");
+        method = method != null ? method.toUpperCase() : "GET";
+        String body = method.equals("GET") ? null : jsonField(line, "body");
+
+        long offset = -1;
+        String timestamp = firstField(line, "ts", "timestamp", "time");
+        if (timestamp != null) {
+            long ts = Long.parseLong(timestamp);
+            if (firstTimestamp < 0) firstTimestamp = ts;
+            offset = (long) ((ts - firstTimestamp) / timeScale);
+        }
+        return new Request(method, path, body, offset);
+    }
+
+    private static String firstField(String line, String... names) {
+        for (String name : names) {
+            String value = jsonField(line, name);
+            if (value != null) return value;
+        }
+        return null;
+    }
+
+    // Minimal lookup of a top-level string or number field in a flat JSON object
+    static String jsonField(String json, String name) {
+        String quoted = "\"" + name + "\"";
+        int at = json.indexOf(quoted);
+        while (at >= 0) {
+            int i = skipSpaces(json, at + quoted.length());
+            if (i < json.length() && json.charAt(i) == ':') {
+                i = skipSpaces(json, i + 1);
+                if (i >= json.length()) return null;
+                return json.charAt(i) == '"' ? readString(json, i + 1) : readBare(json, i);
+            }
+            at = json.indexOf(quoted, at + 1); // The name appeared inside a value; keep looking
+        }
+        return null;
+    }
+
+    private static int skipSpaces(String s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+        return i;
+    }
+
+    private static String readString(String s, int i) {
+        StringBuilder value = new StringBuilder();
+        while (i < s.length()) {
+            char c = s.charAt(i++);
+            if (c == '"') return value.toString();
+            if (c != '\\' || i >= s.length()) {
+                value.append(c);
+                continue;
+            }
+            char escaped = s.charAt(i++);
+            switch (escaped) {
+                case 'n': value.append('\n'); break;
+                case 't': value.append('\t'); break;
+                case 'r': value.append('\r'); break;
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'u':
+                    value.append((char) Integer.parseInt(s.substring(i, i + 4), 16));
+                    i += 4;
+                    break;
+                default: value.append(escaped); // \" \\ \/
+            }
+        }
+        throw new IllegalArgumentException("Unterminated string");
+    }
+
+    private static String readBare(String s, int i) {
+        int end = i;
+        while (end < s.length() && ",}] \t".indexOf(s.charAt(end)) < 0) end++;
+        String value = s.substring(i, end);
+        return value.equals("null") ? null : value;
+    }
+}
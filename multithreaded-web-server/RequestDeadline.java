@@ -0,0 +1,116 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Tracks the time limits of one request. When a limit passes, the watched channel is
+// closed from the timer thread, which makes any blocked read or write fail immediately.
+public class RequestDeadline implements Runnable {
+    // Remaining budget in milliseconds, passed from ProxyServer to Server
+    public static final String BUDGET_HEADER = "X-Request-Budget-Ms";
+
+    private final TimerWheel wheel;
+    private final long idleTimeoutMillis;
+    private volatile long totalDeadline;
+    private volatile long phaseDeadline = Long.MAX_VALUE;
+    private volatile String phase = "request";
+    private volatile long lastActivity;
+    private volatile Closeable watched;
+    private volatile String expiredReason;
+    private volatile TimerWheel.Timeout timeout;
+    private boolean finished;
+
+    public RequestDeadline(TimerWheel wheel, TimeoutConfig config) {
+        this.wheel = wheel;
+        this.idleTimeoutMillis = config.idleTimeoutMillis;
+        this.lastActivity = now();
+        this.totalDeadline = lastActivity + config.totalRequestTimeoutMillis;
+        this.timeout = wheel.schedule(this, config.totalRequestTimeoutMillis);
+    }
+
+    // Channel to close if a limit passes; replaces any previously watched channel
+    public void watch(Closeable channel) {
+        this.watched = channel;
+    }
+
+    public void enterPhase(String name, long timeoutMillis) {
+        long now = now();
+        phase = name;
+        phaseDeadline = now + timeoutMillis;
+        lastActivity = now;
+        reschedule();
+    }
+
+    // Caps the whole request at a budget handed down by an upstream caller
+    public void limitTo(long budgetMillis) {
+        totalDeadline = Math.min(totalDeadline, now() + budgetMillis);
+        reschedule();
+    }
+
+    // Called after each successful read so the idle limit only counts silence
+    public void touch() {
+        lastActivity = now();
+    }
+
+    public long remainingMillis() {
+        return totalDeadline - now();
+    }
+
+    public boolean isExpired() {
+        return expiredReason != null;
+    }
+
+    public String getExpiredReason() {
+        return expiredReason;
+    }
+
+    // Call when the request completes, successfully or not
+    public synchronized void cancel() {
+        finished = true;
+        timeout.cancel();
+    }
+
+    @Override
+    public synchronized void run() {
+        if (finished) return;
+        long now = now();
+        if (now >= totalDeadline) {
+            expire("total request timeout");
+        } else if (now >= phaseDeadline) {
+            expire(phase + " timeout");
+        } else if (idleTimeoutMillis > 0 && now - lastActivity >= idleTimeoutMillis) {
+            expire("idle timeout during " + phase);
+        } else {
+            timeout = wheel.schedule(this, nextCheck(now) - now);
+        }
+    }
+
+    private synchronized void reschedule() {
+        // Only the earliest limit needs a timer; a stale one just re-checks and re-arms
+        if (!finished && expiredReason == null && timeout.cancel()) {
+            long now = now();
+            timeout = wheel.schedule(this, nextCheck(now) - now);
+        }
+    }
+
+    private long nextCheck(long now) {
+        long next = Math.min(totalDeadline, phaseDeadline);
+        if (idleTimeoutMillis > 0) {
+            next = Math.min(next, lastActivity + idleTimeoutMillis);
+        }
+        return Math.max(next, now);
+    }
+
+    private void expire(String reason) {
+        expiredReason = reason;
+        Closeable channel = watched;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+// Timeline of one request as raw System.nanoTime() marks, one slot per span, so recording
+// a span is a single array store. Marks left at 0 were never reached (e.g. a cache hit has
+// no upstream spans). The trace ID travels from ProxyServer to Server in X-Trace-Id.
+public class RequestTrace {
+    public static final String TRACE_HEADER = "X-Trace-Id";
+
+    public static final int ACCEPTED = 0;
+    public static final int HEAD_READ = 1;          // Request head complete on the event loop
+    public static final int QUEUED = 2;             // Handed to the thread pool
+    public static final int STARTED = 3;            // Picked up by a worker
+    public static final int PARSED = 4;
+    public static final int CACHE_CHECKED = 5;
+    public static final int UPSTREAM_CONNECTED = 6;
+    public static final int UPSTREAM_SENT = 7;
+    public static final int UPSTREAM_FIRST_BYTE = 8;
+    public static final int UPSTREAM_COMPLETE = 9;
+    public static final int WRITTEN = 10;           // Response flushed to the client
+
+    private static final String[] SPAN_NAMES = {
+        "accept", "head_read", "queued", "started", "parsed", "cache_checked",
+        "upstream_connected", "upstream_sent", "upstream_first_byte", "upstream_complete", "written"
+    };
+
+    private final long[] marks = new long[SPAN_NAMES.length];
+    private long traceId = ThreadLocalRandom.current().nextLong();
+    private String request; // "GET /path", set once the request line is parsed
+    private int status;     // 0 if no response was sent
+    private long finishedAt;
+
+    public RequestTrace() {
+        marks[ACCEPTED] = System.nanoTime();
+    }
+
+    public void mark(int span) {
+        marks[span] = System.nanoTime();
+    }
+
+    public void setRequest(String request) {
+        this.request = request;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    // Continues a trace started by the caller, if it sent a well-formed ID
+    public void adoptId(String headerValue) {
+        if (headerValue == null) return;
+        try {
+            traceId = Long.parseUnsignedLong(headerValue, 16);
+        } catch (NumberFormatException ignored) {}
+    }
+
+    public String idString() {
+        return Long.toHexString(traceId);
+    }
+
+    public void finish() {
+        finishedAt = System.nanoTime();
+    }
+
+    public boolean hasRequest() {
+        return request != null;
+    }
+
+    public long durationNanos() {
+        return (finishedAt != 0 ? finishedAt : System.nanoTime()) - marks[ACCEPTED];
+    }
+
+    // {"trace_id":..., "request":..., "status":..., "total_us":..., "spans_us":{span: offset from accept}}
+    void appendJson(StringBuilder out) {
+        out.append("{\"trace_id\":\"").append(idString())
+            .append("\",\"request\":\"");
+        appendEscaped(out, request != null ? request : "");
+        out.append("\",\"status\":").append(status)
+            .append(",\"total_us\":").append(durationNanos() / 1000)
+            .append(",\"spans_us\":{");
+        boolean first = true;
+        for (int span = HEAD_READ; span < marks.length; span++) {
+            if (marks[span] == 0) continue;
+            if (!first) out.append(',');
+            out.append('"').append(SPAN_NAMES[span]).append("\":").append((marks[span] - marks[ACCEPTED]) / 1000);
+            first = false;
+        }
+        out.append("}}");
+    }
+
+    private static void appendEscaped(StringBuilder out, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+    }
+}
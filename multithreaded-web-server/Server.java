@@ -1,38 +1,66 @@
 import java.io.*;
-import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Server {
+    private static final int MAX_OBJECT_SIZE = 1024 * 1024;
+
     private final int port;
     private final ExecutorService threadPool;
     private volatile boolean isRunning = true;
-    private ServerSocket serverSocket;
+    private final AtomicBoolean stopping = new AtomicBoolean();
+    private final AcceptorGroup listeners;
     private final ProxyServerUI ui; // Add UI reference
+    private final BufferPool bufferPool = BufferPool.shared();
+    private final TimeoutConfig timeouts;
+    private final RateLimiter rateLimiter;
+    private final SlowRequestSampler slowRequests = new SlowRequestSampler(20, 10_000);
 
     public Server(int port, ProxyServerUI ui) {
+        this(port, ui, ListenerConfig.defaults());
+    }
+
+    public Server(int port, ProxyServerUI ui, ListenerConfig listenerConfig) {
+        this(port, ui, listenerConfig, TimeoutConfig.defaults());
+    }
+
+    public Server(int port, ProxyServerUI ui, ListenerConfig listenerConfig, TimeoutConfig timeouts) {
+        this(port, ui, listenerConfig, timeouts, RateLimitConfig.disabled());
+    }
+
+    public Server(int port, ProxyServerUI ui, ListenerConfig listenerConfig, TimeoutConfig timeouts,
+                  RateLimitConfig rateLimits) {
         this.port = port;
+        this.timeouts = timeouts;
         this.threadPool = Executors.newFixedThreadPool(10); // Use a fixed thread pool size
         this.ui = ui;
+        this.rateLimiter = new RateLimiter(rateLimits);
+        // The event loop reads each request head and turns away over-limit clients itself,
+        // so only admitted requests take a pool thread
+        this.listeners = new AcceptorGroup("server", port, listenerConfig, new AcceptorGroup.RequestHandler() {
+            @Override
+            public ByteBuffer tryFastPath(SocketChannel channel, ByteBuffer request, int headEnd, RequestTrace trace) {
+                ByteBuffer rejection = rateLimiter.check(channel, request, headEnd);
+                return rejection != null ? rejection : slowRequests.tryServe(channel, request, headEnd);
+            }
+
+            @Override
+            public void handOff(SocketChannel channel, ByteBuffer request, int headEnd, RequestDeadline deadline,
+                                RequestTrace trace) {
+                threadPool.execute(() -> handleClient(channel, request, headEnd, deadline, trace));
+            }
+        }, timeouts, ui);
     }
 
     public void start() {
         try {
-            serverSocket = new ServerSocket(port);
+            listeners.open();
             ui.addLog("SERVER", "Server started on port " + port, "SYSTEM", "SUCCESS"); // Log to UI
 
-            while (isRunning) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    threadPool.execute(() -> handleClient(clientSocket));
-                } catch (SocketException e) {
-                    if (!isRunning) {
-                        // Expected exception when stopping the server
-                        break;
-                    } else {
-                        ui.addLog("SERVER ERROR", "Socket error", "SYSTEM", "ERROR: " + e.getMessage());
-                    }
-                }
-            }
+            listeners.run(); // Accept loops run until stop() has drained them
         } catch (IOException e) {
             if (isRunning) { // Only log if not intentionally stopped
                 ui.addLog("SERVER ERROR", "Failed to start server", "SYSTEM", "ERROR: " + e.getMessage());
@@ -42,43 +70,87 @@ public class Server {
         }
     }
 
+    // Graceful: in-flight requests get up to the total request timeout to finish
     public void stop() {
+        drain(timeouts.totalRequestTimeoutMillis);
+    }
+
+    // Stops accepting, lets accepted requests finish for up to timeoutMillis, then cuts off
+    // whatever is left. Every response already carries "Connection: close", so clients do not
+    // reuse a connection to a draining server. Returns false if requests had to be cut off.
+    public boolean drain(long timeoutMillis) {
+        if (!stopping.compareAndSet(false, true)) return true;
         isRunning = false;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        boolean drained = false;
         try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
-                ui.addLog("SERVER", "Server stopped", "SYSTEM", "INFO"); // Log to UI
-            }
-        } catch (IOException e) {
-            ui.addLog("SERVER ERROR", "Error stopping server", "SYSTEM", "ERROR: " + e.getMessage());
+            listeners.stopAccepting();
+            ui.addLog("SERVER", "Server stopped accepting, draining requests", "SYSTEM", "INFO");
+            // The loops hand off their last requests before exiting, so the pool may only shut after them
+            drained = listeners.awaitStopped(timeoutMillis);
+            threadPool.shutdown();
+            drained &= threadPool.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
-            threadPool.shutdownNow(); // Force shutdown of all running tasks
+            listeners.close();
+            if (!drained) {
+                List<Runnable> queued = threadPool.shutdownNow(); // Deadline passed; interrupt what is left
+                ui.addLog("SERVER", "Drain deadline passed", "SYSTEM", "WARNING: " + queued.size() + " queued requests dropped");
+            }
+            ui.addLog("SERVER", "Server stopped", "SYSTEM", "INFO"); // Log to UI
             ui.addLog("SERVER", "Server thread pool shut down", "SYSTEM", "INFO");
+            rateLimiter.logStats(ui, "SERVER");
+            bufferPool.logStats(ui, "SERVER");
         }
+        return drained;
     }
 
-    private void handleClient(Socket socket) {
+    // Zero-downtime restart: next binds the same port alongside this server (both need
+    // ListenerConfig.reusePort) and starts serving before this one drains. If next cannot
+    // bind, the exception is thrown and this server keeps running.
+    public boolean handOverTo(Server next) throws IOException {
+        if (next.port != port) {
+            throw new IllegalArgumentException("Replacement must listen on port " + port);
+        }
+        next.listeners.open();
+        new Thread(next::start, "server-" + port).start();
+        ui.addLog("SERVER", "Handing over port " + port + " to new instance", "SYSTEM", "INFO");
+        return drain(timeouts.totalRequestTimeoutMillis);
+    }
+
+    // Runs on a pool thread with the request head already read by the event loop
+    private void handleClient(SocketChannel channel, ByteBuffer buffer, int headEnd, RequestDeadline deadline,
+                              RequestTrace trace) {
+        trace.mark(RequestTrace.STARTED);
         long startTime = System.currentTimeMillis();
-        String clientIP = socket.getInetAddress().getHostAddress();
-
-        try (
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()))
-        ) {
-            StringBuilder request = new StringBuilder();
-            String line;
-
-            // Read HTTP request headers
-            while ((line = in.readLine()) != null && !line.isEmpty()) {
-                request.append(line).append("\n");
-            }
+        String clientIP = channel.socket().getInetAddress().getHostAddress();
+
+        try {
+            int requestLineEnd = ChannelIO.lineEnd(buffer, 0, headEnd);
+            String[] requestParts = ChannelIO.decode(buffer, 0, requestLineEnd).split(" ");
+            if (requestParts.length < 2) return;
 
-            String requestLine = request.toString().split("\n")[0];
-            String method = requestLine.split(" ")[0];
-            String path = requestLine.split(" ")[1];
+            String method = requestParts[0];
+            String path = requestParts[1];
+            trace.setRequest(method + " " + path);
+            trace.adoptId(ChannelIO.headerValue(buffer, headEnd, RequestTrace.TRACE_HEADER)); // Same ID as the proxy's trace
+            trace.mark(RequestTrace.PARSED);
 
             ui.addLog("SERVER", path, clientIP, "RECEIVED REQUEST: " + method);
 
+            // A proxy in front tells us how long it will still wait; don't work on requests it already gave up on
+            String budget = ChannelIO.headerValue(buffer, headEnd, RequestDeadline.BUDGET_HEADER);
+            if (budget != null) {
+                long budgetMillis = parseBudget(budget);
+                if (budgetMillis <= 0) {
+                    ui.addLog("SERVER", path, clientIP, "DROPPED: DEADLINE ALREADY PASSED");
+                    sendUnavailable(channel, buffer, trace);
+                    return;
+                }
+                deadline.limitTo(budgetMillis);
+            }
+
             String responseBody;
             if (path.startsWith("/api/data")) {
                 if (method.equals("GET")) {
@@ -96,26 +168,87 @@ public class Server {
                 responseBody = "<html><body><h1>Hello from Server</h1><p>Path: " + path + "</p></body></html>";
             }
 
-             String httpResponse = "HTTP/1.1 200 OK\r\n"
-                + "Content-Type: " + (path.endsWith(".json") || path.contains("/api") ? "application/json" : "text/html") + "\r\n"
-                + "Content-Length: " + responseBody.length() + "\r\n"
-                + "Cache-Control: max-age=60\r\n" // Add cache control header
+            // Synthetic workloads ask for objects of a given size to exercise cache capacity
+            int requestedSize = Math.min(queryInt(path, "size"), MAX_OBJECT_SIZE);
+            if (requestedSize > responseBody.length()) {
+                responseBody += " ".repeat(requestedSize - responseBody.length()); // Trailing whitespace keeps JSON valid
+            }
+
+            if (deadline.isExpired()) {
+                ui.addLog("SERVER", path, clientIP, "DROPPED: " + deadline.getExpiredReason());
+                sendUnavailable(channel, buffer, trace);
+                return;
+            }
+
+            // Encode straight into the pooled buffer instead of building the response as one String
+            buffer.clear();
+            ChannelIO.writeAscii(channel, buffer, "HTTP/1.1 200 OK\r\nContent-Type: ");
+            ChannelIO.writeAscii(channel, buffer, path.endsWith(".json") || path.contains("/api") ? "application/json" : "text/html");
+            ChannelIO.writeAscii(channel, buffer, "\r\nContent-Length: ");
+            ChannelIO.writeAscii(channel, buffer, Integer.toString(responseBody.length()));
+            ChannelIO.writeAscii(channel, buffer, "\r\nCache-Control: max-age=60\r\n" // Add cache control header
                 + "Connection: close\r\n"
-                + "\r\n"
-                + responseBody;
-                
-            out.write(httpResponse);
-            out.flush();
+                + "\r\n");
+            ChannelIO.writeAscii(channel, buffer, responseBody);
+            ChannelIO.flush(channel, buffer);
+            trace.mark(RequestTrace.WRITTEN);
+            trace.setStatus(200);
             ui.addLog("SERVER", path, clientIP, "SENT RESPONSE");
 
         } catch (IOException e) {
-            ui.addLog("SERVER ERROR", "Client handling error", clientIP, "ERROR: " + e.getMessage());
+            if (deadline.isExpired()) {
+                ui.addLog("SERVER ERROR", "Request timed out", clientIP, "TIMEOUT: " + deadline.getExpiredReason());
+            } else {
+                ui.addLog("SERVER ERROR", "Client handling error", clientIP, "ERROR: " + e.getMessage());
+            }
         } finally {
+            deadline.cancel();
+            bufferPool.release(buffer);
             try {
-                socket.close();
+                channel.close();
             } catch (IOException ignored) {}
+            trace.finish();
+            if (trace.hasRequest()) {
+                slowRequests.record(trace);
+            }
             long duration = System.currentTimeMillis() - startTime;
             // System.out.println("Handled in " + duration + " ms"); // Removed direct console print
         }
     }
+
+    // Tells a caller that gave up (or is about to) that no work was done, rather than just closing
+    private void sendUnavailable(SocketChannel channel, ByteBuffer buffer, RequestTrace trace) {
+        if (!channel.isOpen()) return;
+        try {
+            buffer.clear();
+            ChannelIO.writeAscii(channel, buffer, "HTTP/1.1 503 Service Unavailable\r\n"
+                + "Content-Length: 0\r\n"
+                + "Connection: close\r\n"
+                + "\r\n");
+            ChannelIO.flush(channel, buffer);
+            trace.mark(RequestTrace.WRITTEN);
+            trace.setStatus(503);
+        } catch (IOException ignored) {}
+    }
+
+    private static int queryInt(String path, String name) {
+        int at = path.indexOf("?" + name + "=");
+        if (at < 0) at = path.indexOf("&" + name + "=");
+        if (at < 0) return 0;
+        int start = at + name.length() + 2;
+        int end = path.indexOf('&', start);
+        try {
+            return Integer.parseInt(path.substring(start, end < 0 ? path.length() : end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static long parseBudget(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE / 2; // Ignore a malformed budget rather than rejecting the request
+        }
+    }
 }
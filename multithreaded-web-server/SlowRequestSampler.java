@@ -0,0 +1,117 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// Keeps the N slowest finished traces of the current time window, plus those of the window
+// before it, and serves them as JSON at GET /admin/traces to loopback clients only, since
+// traces hold other clients' paths. Most requests are not among the slowest; they are
+// turned away by one volatile read without taking the lock.
+public class SlowRequestSampler {
+    public static final String ADMIN_PATH = "/admin/traces";
+    private static final byte[] FORBIDDEN = ("HTTP/1.1 403 Forbidden\r\n"
+        + "Content-Length: 0\r\n"
+        + "Connection: close\r\n"
+        + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    private static final Comparator<RequestTrace> BY_DURATION = Comparator.comparingLong(RequestTrace::durationNanos);
+
+    private final int capacity;
+    private final long windowNanos;
+    private final PriorityQueue<RequestTrace> current; // Min-heap: the fastest kept trace is evicted first
+    private List<RequestTrace> previous = Collections.emptyList();
+    private volatile long windowEnd;
+    private volatile long admitAbove; // A trace must be slower than this once the window is full
+
+    public SlowRequestSampler(int capacity, long windowMillis) {
+        this.capacity = capacity;
+        this.windowNanos = windowMillis * 1_000_000L;
+        this.current = new PriorityQueue<>(capacity, BY_DURATION);
+        this.windowEnd = System.nanoTime() + windowNanos;
+    }
+
+    public void record(RequestTrace trace) {
+        long duration = trace.durationNanos();
+        if (duration <= admitAbove && System.nanoTime() - windowEnd < 0) {
+            return;
+        }
+        synchronized (this) {
+            rotate(System.nanoTime());
+            if (current.size() < capacity) {
+                current.add(trace);
+            } else if (duration > current.peek().durationNanos()) {
+                current.poll();
+                current.add(trace);
+            }
+            admitAbove = current.size() < capacity ? 0 : current.peek().durationNanos();
+        }
+    }
+
+    // Answers GET /admin/traces; null for any other request. Remote clients get 403 rather than
+    // null so the proxy never forwards the request to a Server that would see it from loopback.
+    public ByteBuffer tryServe(SocketChannel channel, ByteBuffer request, int headEnd) {
+        String prefix = "GET " + ADMIN_PATH;
+        if (headEnd <= prefix.length()) return null;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (request.get(i) != prefix.charAt(i)) return null;
+        }
+        byte next = request.get(prefix.length());
+        if (next != ' ' && next != '?') return null;
+        if (!channel.socket().getInetAddress().isLoopbackAddress()) {
+            return ByteBuffer.wrap(FORBIDDEN);
+        }
+
+        byte[] body = toJson().getBytes(StandardCharsets.ISO_8859_1);
+        byte[] head = ("HTTP/1.1 200 OK\r\n"
+            + "Content-Type: application/json\r\n"
+            + "Content-Length: " + body.length + "\r\n"
+            + "Cache-Control: no-store\r\n"
+            + "Connection: close\r\n"
+            + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer response = ByteBuffer.allocate(head.length + body.length);
+        response.put(head).put(body).flip();
+        return response;
+    }
+
+    public String toJson() {
+        List<RequestTrace> currentWindow;
+        List<RequestTrace> previousWindow;
+        synchronized (this) {
+            rotate(System.nanoTime());
+            currentWindow = new ArrayList<>(current);
+            previousWindow = new ArrayList<>(previous);
+        }
+        currentWindow.sort(BY_DURATION.reversed());
+        previousWindow.sort(BY_DURATION.reversed());
+
+        StringBuilder json = new StringBuilder("{\"window_ms\":").append(windowNanos / 1_000_000)
+            .append(",\"capacity\":").append(capacity)
+            .append(",\"current\":");
+        appendTraces(json, currentWindow);
+        json.append(",\"previous\":");
+        appendTraces(json, previousWindow);
+        return json.append('}').toString();
+    }
+
+    private static void appendTraces(StringBuilder json, List<RequestTrace> traces) {
+        json.append('[');
+        for (int i = 0; i < traces.size(); i++) {
+            if (i > 0) json.append(',');
+            traces.get(i).appendJson(json);
+        }
+        json.append(']');
+    }
+
+    // Caller holds the lock
+    private void rotate(long now) {
+        if (now - windowEnd < 0) return;
+        // A window with no traffic at all leaves nothing to show as "previous"
+        previous = now - windowEnd < windowNanos ? new ArrayList<>(current) : Collections.emptyList();
+        current.clear();
+        admitAbove = 0;
+        windowEnd = now + windowNanos - (now - windowEnd) % windowNanos;
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.Arrays;
+import java.util.Random;
+
+// Parameterized traffic for cache-sizing experiments: keys drawn from a Zipf, Pareto or
+// uniform popularity distribution, per-key object sizes from a bounded Pareto, and a
+// configurable read/write mix. Reads ask Server for an object of the key's size; writes
+// POST to the same key.
+public class SyntheticWorkload implements Workload {
+    public enum KeyDistribution { UNIFORM, ZIPF, PARETO }
+
+    private final KeyDistribution distribution;
+    private final double skew; // Zipf exponent s, or Pareto shape alpha
+    private final int keyspaceSize;
+    private final int minObjectSize;
+    private final int maxObjectSize;
+    private final double sizeAlpha; // <= 0 gives every object minObjectSize bytes
+    private final double readRatio;
+    private final long seed;
+    private final Random random;
+    private final double[] zipfCdf; // Only built for ZIPF
+
+    public SyntheticWorkload(KeyDistribution distribution, double skew, int keyspaceSize,
+                             int minObjectSize, int maxObjectSize, double sizeAlpha, double readRatio, long seed) {
+        if (keyspaceSize < 1) {
+            throw new IllegalArgumentException("Keyspace must hold at least one key");
+        }
+        if (distribution != KeyDistribution.UNIFORM && skew <= 0) {
+            throw new IllegalArgumentException("Skew must be positive for " + distribution);
+        }
+        this.distribution = distribution;
+        this.skew = skew;
+        this.keyspaceSize = keyspaceSize;
+        this.minObjectSize = minObjectSize;
+        this.maxObjectSize = Math.max(minObjectSize, maxObjectSize);
+        this.sizeAlpha = sizeAlpha;
+        this.readRatio = readRatio;
+        this.seed = seed;
+        this.random = new Random(seed);
+        this.zipfCdf = distribution == KeyDistribution.ZIPF ? buildZipfCdf(keyspaceSize, skew) : null;
+    }
+
+    @Override
+    public synchronized Request next() {
+        int key = nextKey();
+        if (random.nextDouble() < readRatio) {
+            return new Request("GET", "/api/data?size=" + objectSize(key) + "&id=" + key, null, -1);
+        }
+        // The key is in the path too, so a cache can tell which object the write touches
+        return new Request("POST", "/api/data?id=" + key, "{\"id\":" + key + "}", -1);
+    }
+
+    // Key 0 is the most popular
+    private int nextKey() {
+        switch (distribution) {
+            case ZIPF:
+                int index = Arrays.binarySearch(zipfCdf, random.nextDouble());
+                return Math.min(index >= 0 ? index : -index - 1, keyspaceSize - 1);
+            case PARETO:
+                while (true) {
+                    // Inverse CDF of Pareto(x_m = 1, alpha); reject ranks beyond the keyspace
+                    double rank = Math.pow(1 - random.nextDouble(), -1.0 / skew) - 1;
+                    if (rank < keyspaceSize) return (int) rank;
+                }
+            default:
+                return random.nextInt(keyspaceSize);
+        }
+    }
+
+    // Each key keeps the same size for the whole run so cached objects are stable
+    private int objectSize(int key) {
+        if (sizeAlpha <= 0 || maxObjectSize == minObjectSize) {
+            return minObjectSize;
+        }
+        double u = new Random(seed ^ (key * 0x9E3779B97F4A7C15L)).nextDouble();
+        // Inverse CDF of a Pareto bounded to [min, max]
+        double ratio = Math.pow((double) minObjectSize / maxObjectSize, sizeAlpha);
+        double size = minObjectSize / Math.pow(1 - u * (1 - ratio), 1.0 / sizeAlpha);
+        return (int) Math.min(maxObjectSize, size);
+    }
+
+    private static double[] buildZipfCdf(int keyspaceSize, double s) {
+        double[] cdf = new double[keyspaceSize];
+        double sum = 0;
+        for (int k = 0; k < keyspaceSize; k++) {
+            sum += 1.0 / Math.pow(k + 1, s);
+            cdf[k] = sum;
+        }
+        for (int k = 0; k < keyspaceSize; k++) {
+            cdf[k] /= sum;
+        }
+        return cdf;
+    }
+}
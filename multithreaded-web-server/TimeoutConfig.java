@@ -0,0 +1,21 @@
+// Per-request time limits in milliseconds, enforced by RequestDeadline on the shared TimerWheel
+public class TimeoutConfig {
+    public final long connectTimeoutMillis;
+    public final long headerReadTimeoutMillis;
+    public final long bodyReadTimeoutMillis;
+    public final long idleTimeoutMillis;
+    public final long totalRequestTimeoutMillis;
+
+    public TimeoutConfig(long connectTimeoutMillis, long headerReadTimeoutMillis, long bodyReadTimeoutMillis,
+                         long idleTimeoutMillis, long totalRequestTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.headerReadTimeoutMillis = headerReadTimeoutMillis;
+        this.bodyReadTimeoutMillis = bodyReadTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.totalRequestTimeoutMillis = totalRequestTimeoutMillis;
+    }
+
+    public static TimeoutConfig defaults() {
+        return new TimeoutConfig(2000, 5000, 10000, 5000, 15000);
+    }
+}
@@ -0,0 +1,115 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Hashed timer wheel: one thread serves every timeout in the process, so request
+// deadlines cost a queue insert instead of a thread or a per-socket timer.
+// Tasks run on the wheel thread and must be short (e.g. closing a channel).
+public class TimerWheel {
+    private static final TimerWheel SHARED = new TimerWheel(10, 512);
+
+    private final long tickMillis;
+    private final int mask;
+    private final List<Timeout>[] buckets;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    private long currentTick;
+
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadlineTick;
+        private long remainingRounds;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        // Returns false if the task already ran
+        public boolean cancel() {
+            return done.compareAndSet(false, true);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(long tickMillis, int wheelSize) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Wheel size must be a power of two");
+        }
+        this.tickMillis = tickMillis;
+        this.mask = wheelSize - 1;
+        this.buckets = new List[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            buckets[i] = new ArrayList<>();
+        }
+
+        Thread worker = new Thread(this::run, "timer-wheel");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public static TimerWheel shared() {
+        return SHARED;
+    }
+
+    public Timeout schedule(Runnable task, long delayMillis) {
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        // Round up so a timeout never fires early
+        long deadlineTick = (elapsedMillis + Math.max(0, delayMillis) + tickMillis - 1) / tickMillis;
+        Timeout timeout = new Timeout(task, deadlineTick);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (true) {
+            long nextTickNanos = startNanos + TimeUnit.MILLISECONDS.toNanos((currentTick + 1) * tickMillis);
+            long sleepNanos = nextTickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            currentTick++;
+            transferPending();
+            expire(buckets[(int) (currentTick & mask)]);
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.done.get()) continue;
+            long tick = Math.max(timeout.deadlineTick, currentTick); // Already overdue: fire this tick
+            timeout.remainingRounds = (tick - currentTick) / buckets.length;
+            buckets[(int) (tick & mask)].add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> bucket) {
+        int kept = 0;
+        for (int i = 0; i < bucket.size(); i++) {
+            Timeout timeout = bucket.get(i);
+            if (timeout.done.get()) continue;
+            if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+                bucket.set(kept++, timeout);
+                continue;
+            }
+            if (timeout.done.compareAndSet(false, true)) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException ignored) {
+                    // A failing task must not stop the wheel
+                }
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+    }
+}
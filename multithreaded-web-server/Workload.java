@@ -0,0 +1,27 @@
+// Source of requests for Client test runs
+public interface Workload {
+    // Next request to send, or null once the workload is exhausted
+    Request next();
+
+    class Request {
+        public final String method;
+        public final String path;
+        public final String body; // null for requests without a body
+        public final long offsetMillis; // When to send, relative to the start of the run; -1 if paced by the caller
+
+        public Request(String method, String path, String body, long offsetMillis) {
+            this.method = method;
+            this.path = path;
+            this.body = body;
+            this.offsetMillis = offsetMillis;
+        }
+
+        public String toHttp(String host) {
+            String request = method + " " + path + " HTTP/1.1\nHost: " + host + "\n";
+            if (body != null) {
+                return request + "Content-Length: " + body.length() + "\n\n" + body;
+            }
+            return request + "\n";
+        }
+    }
+}